@@ -0,0 +1,153 @@
+package io.kaicode.elasticvc.jmh;
+
+import co.elastic.clients.elasticsearch._types.query_dsl.Query;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.kaicode.elasticvc.api.BranchCriteria;
+import io.kaicode.elasticvc.api.BranchCriteriaCache;
+import io.kaicode.elasticvc.api.BranchService;
+import io.kaicode.elasticvc.api.ElasticVCExecutor;
+import io.kaicode.elasticvc.api.ElasticVCMetrics;
+import io.kaicode.elasticvc.api.MicrometerMeters;
+import io.kaicode.elasticvc.api.PathUtil;
+import io.kaicode.elasticvc.api.VersionControlHelper;
+import io.kaicode.elasticvc.domain.Branch;
+import io.kaicode.elasticvc.example.domain.Concept;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.mapping.IndexCoordinates;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static io.kaicode.elasticvc.helper.QueryHelper.termQuery;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Client side cost of building branch criteria, for branch depths and numbers of versions replaced.
+ * Branches are served from memory and Elasticsearch is mocked so no network time is included.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class BranchCriteriaBenchmarks {
+
+	// Starts below MAIN because MAIN has no versions replaced, so every depth measures each number of versions replaced
+	@Param({"2", "4", "8"})
+	private int depth;
+
+	@Param({"0", "1000", "50000", "500000"})
+	private int versionsReplaced;
+
+	private VersionControlHelper versionControlHelper;
+
+	private Branch branch;
+
+	private Query query;
+
+	@Setup
+	public void setup() {
+		InMemoryBranchService branchService = new InMemoryBranchService();
+		Date timepoint = new Date(1_000_000);
+		Branch parent = null;
+		String path = "MAIN";
+		for (int i = 0; i < depth; i++) {
+			if (parent != null) {
+				path = path + "/B" + i;
+			}
+			Branch version = new Branch(path);
+			version.setBase(parent != null ? parent.getHead() : timepoint);
+			version.setHead(new Date(timepoint.getTime() + i));
+			version.setStart(version.getHead());
+			version.setCreation(version.getHead());
+			branchService.add(version);
+			parent = version;
+		}
+		branch = parent;
+		Set<String> ids = new HashSet<>();
+		for (int i = 0; i < versionsReplaced; i++) {
+			ids.add(UUID.randomUUID().toString());
+		}
+		branch.setVersionsReplaced(Map.of("Concept", ids));
+
+		ElasticsearchOperations elasticsearchOperations = mock(ElasticsearchOperations.class);
+		when(elasticsearchOperations.getIndexCoordinatesFor(any())).thenReturn(IndexCoordinates.of("branch"));
+
+		versionControlHelper = new VersionControlHelper();
+		ReflectionTestUtils.setField(versionControlHelper, "branchService", branchService);
+		ReflectionTestUtils.setField(versionControlHelper, "elasticsearchOperations", elasticsearchOperations);
+		// A cache of size zero so that every invocation builds the criteria
+		ReflectionTestUtils.setField(versionControlHelper, "branchCriteriaCache", new BranchCriteriaCache(0, 0));
+		ReflectionTestUtils.setField(versionControlHelper, "metrics", new ElasticVCMetrics((MicrometerMeters) null));
+		ReflectionTestUtils.setField(versionControlHelper, "executor", new ElasticVCExecutor(0, false));
+
+		query = termQuery("path", branch.getPath());
+	}
+
+	@Benchmark
+	public BranchCriteria getBranchCriteria() {
+		return versionControlHelper.getBranchCriteria(branch);
+	}
+
+	@Benchmark
+	public Query getEntityBranchCriteria() {
+		// A new instance each time because built queries are memoized per instance
+		return new BranchCriteria(branch.getPath(), query, branch.getSharedVersionsReplaced(), branch.getHead()).getEntityBranchCriteria(Concept.class);
+	}
+
+	static class InMemoryBranchService extends BranchService {
+
+		private final Map<String, Branch> branches = new HashMap<>();
+
+		InMemoryBranchService() {
+			super(new ObjectMapper());
+		}
+
+		void add(Branch branch) {
+			branches.put(branch.getPath(), branch);
+		}
+
+		@Override
+		public Branch findLatest(String path) {
+			return branches.get(path);
+		}
+
+		@Override
+		public Branch findBranchOrThrow(String path) {
+			return findBranchOrThrow(path, false);
+		}
+
+		@Override
+		public Branch findBranchOrThrow(String path, boolean includeInheritedMetadata) {
+			return Objects.requireNonNull(branches.get(path), path);
+		}
+
+		@Override
+		public Branch findAtTimepointOrThrow(String path, Date timepoint) {
+			return findBranchOrThrow(path);
+		}
+
+		@Override
+		public List<Branch> findLatestHeadsOfBranchAndAncestors(String path) {
+			List<Branch> latestVersions = new ArrayList<>();
+			for (String p = path; p != null; p = PathUtil.getParentPath(p)) {
+				latestVersions.add(findBranchOrThrow(p));
+			}
+			return latestVersions;
+		}
+
+		@Override
+		public List<List<Branch>> findTimeSlices(String path, List<Date> timepoints) {
+			List<Branch> timeSlice = new ArrayList<>();
+			for (String p = path; p != null; p = PathUtil.getParentPath(p)) {
+				timeSlice.add(findBranchOrThrow(p));
+			}
+			return timepoints.stream().map(timepoint -> timeSlice).toList();
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package io.kaicode.elasticvc.jmh;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.kaicode.elasticvc.api.BranchMetadataHelper;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversion of branch metadata between the public form, which may contain objects and lists, and the flat form stored in Elasticsearch.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class BranchMetadataBenchmarks {
+
+	@Param({"5", "50"})
+	private int entries;
+
+	private BranchMetadataHelper branchMetadataHelper;
+
+	private Map<String, Object> metadata;
+
+	private Map<String, String> flatMetadata;
+
+	@Setup
+	public void setup() {
+		branchMetadataHelper = new BranchMetadataHelper(new ObjectMapper());
+		metadata = new HashMap<>();
+		for (int i = 0; i < entries; i++) {
+			switch (i % 3) {
+				case 0 -> metadata.put("key" + i, "value" + i);
+				case 1 -> metadata.put("list" + i, List.of("one", "two", "three"));
+				default -> metadata.put("object" + i, Map.of("userId", "user" + i, "description", "Classifying", "nested", Map.of("a", "b")));
+			}
+		}
+		flatMetadata = branchMetadataHelper.flattenObjectValues(metadata);
+	}
+
+	@Benchmark
+	public Map<String, String> flatten() {
+		return branchMetadataHelper.flattenObjectValues(metadata);
+	}
+
+	@Benchmark
+	public Map<String, Object> expand() {
+		return branchMetadataHelper.expandObjectValues(flatMetadata);
+	}
+}
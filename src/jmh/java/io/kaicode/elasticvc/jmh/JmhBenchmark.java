@@ -0,0 +1,23 @@
+package io.kaicode.elasticvc.jmh;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH benchmarks in this package, only included by the benchmark profile: mvn test -Pbenchmark -Dtest=JmhBenchmark
+ * A subset can be selected with -Djmh.include=<regex>, for example -Djmh.include=BranchCriteriaBenchmarks
+ */
+@Tag("benchmark")
+class JmhBenchmark {
+
+	@Test
+	void runBenchmarks() throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(System.getProperty("jmh.include", getClass().getPackageName() + ".*Benchmarks"))
+				.build())
+				.run();
+	}
+}
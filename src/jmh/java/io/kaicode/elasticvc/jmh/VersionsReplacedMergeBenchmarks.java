@@ -0,0 +1,60 @@
+package io.kaicode.elasticvc.jmh;
+
+import io.kaicode.elasticvc.api.MapUtil;
+import io.kaicode.elasticvc.domain.InternalIdSet;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merging the versions replaced of a branch with those of an ancestor, as HashSets through MapUtil and as InternalIdSets.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class VersionsReplacedMergeBenchmarks {
+
+	@Param({"1000", "50000", "500000"})
+	private int versionsReplaced;
+
+	private Map<String, Set<String>> branchVersionsReplaced;
+
+	private Map<String, Set<String>> ancestorVersionsReplaced;
+
+	private InternalIdSet branchIds;
+
+	private InternalIdSet ancestorIds;
+
+	@Setup
+	public void setup() {
+		Set<String> branch = new HashSet<>();
+		Set<String> ancestor = new HashSet<>();
+		for (int i = 0; i < versionsReplaced; i++) {
+			branch.add(UUID.randomUUID().toString());
+			ancestor.add(UUID.randomUUID().toString());
+		}
+		branchVersionsReplaced = Map.of("Concept", branch);
+		ancestorVersionsReplaced = Map.of("Concept", ancestor);
+		branchIds = InternalIdSet.of(branch);
+		ancestorIds = InternalIdSet.of(ancestor);
+	}
+
+	@Benchmark
+	public Map<String, Set<String>> mapUtilAddAll() {
+		return MapUtil.addAll(ancestorVersionsReplaced, MapUtil.addAll(branchVersionsReplaced, new HashMap<>()));
+	}
+
+	@Benchmark
+	public Set<String> internalIdSetUnion() {
+		return InternalIdSet.union(branchIds, ancestorIds);
+	}
+
+	@Benchmark
+	public boolean internalIdSetContains() {
+		return branchIds.contains(ancestorIds.iterator().next());
+	}
+}
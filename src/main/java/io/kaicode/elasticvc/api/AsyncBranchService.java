@@ -0,0 +1,91 @@
+package io.kaicode.elasticvc.api;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.kaicode.elasticvc.domain.Branch;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+/**
+ * Non-blocking variants of the branch read methods of BranchService and VersionControlHelper.
+ * Each call runs on a small pool of daemon threads of its own so that the calling thread, for example a web request thread, is not held
+ * while Elasticsearch responds. Independent lookups can be combined with CompletableFuture.allOf to run concurrently.
+ * The pool is separate from the ElasticVCExecutor so that read-only lookups neither depend on its concurrency setting nor compete with commits for its threads.
+ */
+@Service
+public class AsyncBranchService {
+
+	@Autowired
+	private BranchService branchService;
+
+	@Autowired
+	private VersionControlHelper versionControlHelper;
+
+	private final ExecutorService executorService;
+
+	public AsyncBranchService(@Value("${elasticvc.async.threads:4}") int threads) {
+		ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(Math.max(threads, 1), Math.max(threads, 1), 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+				new ThreadFactoryBuilder().setNameFormat("elasticvc-async-%d").setDaemon(true).build());
+		threadPoolExecutor.allowCoreThreadTimeOut(true);
+		executorService = threadPoolExecutor;
+	}
+
+	/**
+	 * @see BranchService#findLatest(String)
+	 */
+	public CompletableFuture<Branch> findLatest(String path) {
+		return supplyAsync(() -> branchService.findLatest(path));
+	}
+
+	/**
+	 * @see BranchService#findAtTimepointOrThrow(String, Date)
+	 */
+	public CompletableFuture<Branch> findAtTimepointOrThrow(String path, Date timepoint) {
+		return supplyAsync(() -> branchService.findAtTimepointOrThrow(path, timepoint));
+	}
+
+	/**
+	 * @see VersionControlHelper#getTimeSlice(String, Date)
+	 */
+	public CompletableFuture<List<Branch>> getTimeSlice(String path, Date timepoint) {
+		return supplyAsync(() -> versionControlHelper.getTimeSlice(path, timepoint));
+	}
+
+	/**
+	 * @see VersionControlHelper#getBranchCriteria(String)
+	 */
+	public CompletableFuture<BranchCriteria> getBranchCriteria(String path) {
+		return supplyAsync(() -> versionControlHelper.getBranchCriteria(path));
+	}
+
+	/**
+	 * @see VersionControlHelper#getBranchCriteria(Branch)
+	 */
+	public CompletableFuture<BranchCriteria> getBranchCriteria(Branch branch) {
+		return supplyAsync(() -> versionControlHelper.getBranchCriteria(branch));
+	}
+
+	// Completes with the exception thrown by the lookup itself, rather than wrapped in a CompletionException, so that get() gives it as the cause
+	private <T> CompletableFuture<T> supplyAsync(Supplier<T> lookup) {
+		final CompletableFuture<T> future = new CompletableFuture<>();
+		executorService.execute(() -> {
+			try {
+				future.complete(lookup.get());
+			} catch (RuntimeException e) {
+				future.completeExceptionally(e);
+			}
+		});
+		return future;
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		executorService.shutdown();
+	}
+}
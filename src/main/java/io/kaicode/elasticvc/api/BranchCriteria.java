@@ -2,11 +2,17 @@ package io.kaicode.elasticvc.api;
 
 import co.elastic.clients.elasticsearch._types.query_dsl.BoolQuery;
 import co.elastic.clients.elasticsearch._types.query_dsl.Query;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.Lists;
+import io.kaicode.elasticvc.domain.Branch;
 import io.kaicode.elasticvc.domain.DomainEntity;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static co.elastic.clients.elasticsearch._types.query_dsl.QueryBuilders.*;
+import static io.kaicode.elasticvc.helper.QueryHelper.termsLookupQuery;
 import static io.kaicode.elasticvc.helper.QueryHelper.termsQuery;
 
 public class BranchCriteria {
@@ -14,18 +20,68 @@ public class BranchCriteria {
 	private final String branchPath;
 	private final Date timepoint;
 	private Query branchCriteria;
-	private Map<String, Set<String>> allEntityVersionsReplaced;
+	private Supplier<Map<String, Set<String>>> allEntityVersionsReplaced;
+	// Branch version documents holding the versions replaced, used in place of id lists when set
+	private String versionsReplacedLookupIndex;
+	private List<String> versionsReplacedLookupDocumentIds;
+	// Entity classes with too many versions replaced for a terms lookup, excluded with lists of at most maxTermsCount ids
+	private Set<String> versionsReplacedListedEntityClasses;
+	private int maxTermsCount;
 	private List<String> excludeContentFromPath;
 	private Map<String, List<String>> excludeContentFromPathsByEntity;
+	// Built entity criteria, shared with copies until either is modified
+	private Map<EntityCriteriaKey, Query> entityBranchCriteria;
+
 	BranchCriteria(String branchPath, Date timepoint) {
 		this.branchPath = branchPath;
 		this.timepoint = timepoint;
+		this.entityBranchCriteria = new ConcurrentHashMap<>();
+	}
+
+	protected BranchCriteria(BranchCriteria other) {
+		this(other.branchPath, other.timepoint);
+		this.branchCriteria = other.branchCriteria;
+		this.allEntityVersionsReplaced = other.allEntityVersionsReplaced;
+		this.versionsReplacedLookupIndex = other.versionsReplacedLookupIndex;
+		this.versionsReplacedLookupDocumentIds = other.versionsReplacedLookupDocumentIds;
+		this.versionsReplacedListedEntityClasses = other.versionsReplacedListedEntityClasses;
+		this.maxTermsCount = other.maxTermsCount;
+		this.excludeContentFromPath = other.excludeContentFromPath != null ? new ArrayList<>(other.excludeContentFromPath) : null;
+		this.excludeContentFromPathsByEntity = other.excludeContentFromPathsByEntity != null ? new HashMap<>(other.excludeContentFromPathsByEntity) : null;
+		this.entityBranchCriteria = other.entityBranchCriteria;
 	}
 
 	public BranchCriteria(String branchPath, Query branchCriteria, Map<String, Set<String>> allEntityVersionsReplaced, Date timepoint) {
 		this(branchPath, timepoint);
 		this.branchCriteria = branchCriteria;
-		this.allEntityVersionsReplaced = allEntityVersionsReplaced;
+		this.allEntityVersionsReplaced = Suppliers.ofInstance(allEntityVersionsReplaced != null ? Collections.unmodifiableMap(allEntityVersionsReplaced) : null);
+	}
+
+	static BranchCriteria withLazyVersionsReplaced(String branchPath, Query branchCriteria, Supplier<Map<String, Set<String>>> allEntityVersionsReplaced, Date timepoint) {
+		BranchCriteria criteria = new BranchCriteria(branchPath, timepoint);
+		criteria.branchCriteria = branchCriteria;
+		criteria.allEntityVersionsReplaced = Suppliers.memoize(() -> {
+			final Map<String, Set<String>> versionsReplaced = allEntityVersionsReplaced.get();
+			return versionsReplaced != null ? Collections.unmodifiableMap(versionsReplaced) : null;
+		});
+		return criteria;
+	}
+
+	/**
+	 * Exclude versions replaced using terms lookup queries against the stored branch version documents
+	 * rather than sending the internal ids with every query.
+	 * @param index the branch index name
+	 * @param branchVersionDocumentIds internal ids of the branch version documents which together hold all versions replaced
+	 * @param listedEntityClasses names of entity classes which a branch version document holds more than maxTermsCount ids of.
+	 * These are excluded with lists of ids, split into terms queries of at most maxTermsCount ids, because a lookup would fail.
+	 * @param maxTermsCount the index.max_terms_count setting of the entity indices
+	 */
+	void setVersionsReplacedLookup(String index, List<String> branchVersionDocumentIds, Set<String> listedEntityClasses, int maxTermsCount) {
+		this.versionsReplacedLookupIndex = index;
+		this.versionsReplacedLookupDocumentIds = List.copyOf(branchVersionDocumentIds);
+		this.versionsReplacedListedEntityClasses = Set.copyOf(listedEntityClasses);
+		this.maxTermsCount = maxTermsCount;
+		clearEntityBranchCriteria();
 	}
 
 
@@ -34,13 +90,15 @@ public class BranchCriteria {
 	}
 
 	protected Query getEntityBranchCriteria(Class<? extends DomainEntity<?>> entityClass, boolean applyVersionsReplaced) {
+		return entityBranchCriteria.computeIfAbsent(new EntityCriteriaKey(entityClass, applyVersionsReplaced),
+				key -> buildEntityBranchCriteria(entityClass, applyVersionsReplaced));
+	}
+
+	protected Query buildEntityBranchCriteria(Class<? extends DomainEntity<?>> entityClass, boolean applyVersionsReplaced) {
 		BoolQuery.Builder builder = bool().must(branchCriteria);
 
-		if (applyVersionsReplaced && allEntityVersionsReplaced != null && !allEntityVersionsReplaced.isEmpty()) {
-			Set<String> values = allEntityVersionsReplaced.get(entityClass.getSimpleName());
-			if (values != null && !values.isEmpty()) {
-				builder.mustNot(termsQuery("_id", values));
-			}
+		if (applyVersionsReplaced) {
+			getVersionsReplacedClauses(entityClass).forEach(builder::mustNot);
 		}
 		if (excludeContentFromPath != null && !excludeContentFromPath.isEmpty()) {
 			builder.mustNot(termsQuery("path", excludeContentFromPath));
@@ -51,11 +109,50 @@ public class BranchCriteria {
 		return builder.build()._toQuery();
 	}
 
+	List<Query> getVersionsReplacedClauses(Class<? extends DomainEntity<?>> entityClass) {
+		if (versionsReplacedLookupDocumentIds != null && versionsReplacedListedEntityClasses.contains(entityClass.getSimpleName())) {
+			Set<String> values = getSharedEntityVersionsReplaced().get(entityClass.getSimpleName());
+			return Lists.partition(new ArrayList<>(values), maxTermsCount).stream()
+					.map(ids -> termsQuery("_id", ids))
+					.toList();
+		}
+		if (versionsReplacedLookupDocumentIds != null) {
+			String field = Branch.Fields.VERSIONS_REPLACED + "." + entityClass.getSimpleName();
+			return versionsReplacedLookupDocumentIds.stream()
+					.map(documentId -> termsLookupQuery("_id", versionsReplacedLookupIndex, documentId, field))
+					.toList();
+		}
+		Map<String, Set<String>> allVersionsReplaced = getSharedEntityVersionsReplaced();
+		if (allVersionsReplaced != null && !allVersionsReplaced.isEmpty()) {
+			Set<String> values = allVersionsReplaced.get(entityClass.getSimpleName());
+			if (values != null && !values.isEmpty()) {
+				return List.of(termsQuery("_id", values));
+			}
+		}
+		return Collections.emptyList();
+	}
+
+	public boolean isVersionsReplacedLookup() {
+		return versionsReplacedLookupDocumentIds != null;
+	}
+
 	public void excludeContentFromPath(String path) {
 		if (excludeContentFromPath == null) {
 			excludeContentFromPath = new ArrayList<>();
 		}
 		excludeContentFromPath.add(path);
+		clearEntityBranchCriteria();
+	}
+
+	protected void clearEntityBranchCriteria() {
+		entityBranchCriteria = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * @return a copy of this criteria which can be modified independently, built entity criteria are shared until either is modified.
+	 */
+	public BranchCriteria copy() {
+		return new BranchCriteria(this);
 	}
 	public String getBranchPath() {
 		return branchPath;
@@ -65,8 +162,22 @@ public class BranchCriteria {
 		return timepoint;
 	}
 
+	/**
+	 * @return a new map of new sets of the versions replaced on the branch and its ancestors, which the caller may modify.
+	 */
 	public Map<String, Set<String>> getAllEntityVersionsReplaced() {
-		return allEntityVersionsReplaced;
+		final Map<String, Set<String>> versionsReplaced = getSharedEntityVersionsReplaced();
+		if (versionsReplaced == null) {
+			return null;
+		}
+		final Map<String, Set<String>> copy = new HashMap<>();
+		versionsReplaced.forEach((key, value) -> copy.put(key, new HashSet<>(value)));
+		return copy;
+	}
+
+	// Unmodifiable map shared with copies of this criteria, read internally without copying
+	Map<String, Set<String>> getSharedEntityVersionsReplaced() {
+		return allEntityVersionsReplaced != null ? allEntityVersionsReplaced.get() : null;
 	}
 
 	void excludeEntityContentFromPaths(String entityClassName, List<String> pathsToExclude) {
@@ -74,6 +185,7 @@ public class BranchCriteria {
 			this.excludeContentFromPathsByEntity = new HashMap<>();
 		}
 		this.excludeContentFromPathsByEntity.put(entityClassName, pathsToExclude);
+		clearEntityBranchCriteria();
 	}
 
 
@@ -82,7 +194,10 @@ public class BranchCriteria {
 		return "BranchCriteria{" +
 				"branchPath=" + branchPath +
 				"branchCriteria=" + branchCriteria +
-				", allEntityVersionsReplaced=" + (allEntityVersionsReplaced != null ? allEntityVersionsReplaced.size() : 0) +
+				", allEntityVersionsReplaced=" + (isVersionsReplacedLookup() ? "lookup" + versionsReplacedLookupDocumentIds :
+						getSharedEntityVersionsReplaced() != null ? getSharedEntityVersionsReplaced().size() : 0) +
 				'}';
 	}
+
+	private record EntityCriteriaKey(Class<?> entityClass, boolean applyVersionsReplaced) {}
 }
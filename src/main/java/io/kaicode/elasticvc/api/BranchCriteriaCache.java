@@ -0,0 +1,90 @@
+package io.kaicode.elasticvc.api;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.kaicode.elasticvc.domain.Branch;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded in-process cache of standard selection branch criteria, keyed by branch path, head and base,
+ * the heads of the latest versions of the ancestors and a revision of the metadata of the branch and its ancestors.
+ * Each entry records the branch paths it was built from, the branch itself, its ancestors and any additional dependent branches.
+ * Saving a version of any of those branches invalidates the entry, entries written by other instances are picked up through the key or once expired.
+ * The cached instances are never given out, callers receive a copy which shares the prebuilt queries.
+ */
+@Service
+public class BranchCriteriaCache {
+
+	private final Cache<CriteriaKey, CriteriaEntry> criteria;
+
+	// Incremented on every invalidation so that criteria built before a save can not populate the cache.
+	private final AtomicLong generation = new AtomicLong();
+
+	public BranchCriteriaCache(@Value("${elasticvc.branch-criteria.cache.max-size:500}") int maxSize,
+			@Value("${elasticvc.branch.cache.expire-after-write-seconds:30}") int expireAfterWriteSeconds) {
+
+		CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder().maximumSize(Math.max(maxSize, 0));
+		if (expireAfterWriteSeconds > 0) {
+			builder.expireAfterWrite(expireAfterWriteSeconds, TimeUnit.SECONDS);
+		}
+		criteria = builder.build();
+	}
+
+	long getGeneration() {
+		return generation.get();
+	}
+
+	/**
+	 * @param latestVersions the latest versions of the branch and its ancestors, holding at least path, head and internal metadata.
+	 */
+	BranchCriteria get(Branch branch, List<Branch> latestVersions) {
+		CriteriaEntry entry = criteria.getIfPresent(new CriteriaKey(branch, latestVersions));
+		return entry != null ? entry.branchCriteria().copy() : null;
+	}
+
+	synchronized void put(Branch branch, List<Branch> latestVersions, BranchCriteria branchCriteria, Set<String> dependencyPaths, long readGeneration) {
+		if (readGeneration == generation.get()) {
+			criteria.put(new CriteriaKey(branch, latestVersions), new CriteriaEntry(branchCriteria.copy(), dependencyPaths));
+		}
+	}
+
+	synchronized void invalidate(String path) {
+		generation.incrementAndGet();
+		criteria.asMap().values().removeIf(entry -> entry.dependencyPaths().contains(path));
+	}
+
+	public synchronized void invalidateAll() {
+		generation.incrementAndGet();
+		criteria.invalidateAll();
+	}
+
+	// The base is part of the key because an open rebase commit moves the base of the branch without changing the head
+	private record CriteriaKey(String path, Date head, Date base, Map<String, Date> ancestorHeads, int metadataRevision) {
+		CriteriaKey(Branch branch, List<Branch> latestVersions) {
+			this(branch.getPath(), branch.getHead(), branch.getBase(), getAncestorHeads(branch.getPath(), latestVersions), getMetadataRevision(latestVersions));
+		}
+
+		private static Map<String, Date> getAncestorHeads(String path, List<Branch> latestVersions) {
+			Map<String, Date> ancestorHeads = new HashMap<>();
+			for (Branch latest : latestVersions) {
+				if (!latest.getPath().equals(path)) {
+					ancestorHeads.put(latest.getPath(), latest.getHead());
+				}
+			}
+			return ancestorHeads;
+		}
+
+		private static int getMetadataRevision(List<Branch> latestVersions) {
+			Map<String, Map<String, String>> metadata = new HashMap<>();
+			latestVersions.forEach(latest -> metadata.put(latest.getPath(), latest.getMetadataInternal()));
+			return metadata.hashCode();
+		}
+	}
+
+	private record CriteriaEntry(BranchCriteria branchCriteria, Set<String> dependencyPaths) {}
+}
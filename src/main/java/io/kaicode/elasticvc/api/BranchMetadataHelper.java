@@ -2,6 +2,7 @@ package io.kaicode.elasticvc.api;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.kaicode.elasticvc.domain.Metadata;
 
 import java.io.IOException;
 import java.util.HashMap;
@@ -18,6 +19,20 @@ public class BranchMetadataHelper {
 		this.objectMapper = objectMapper;
 	}
 
+	/**
+	 * @return the flat form of the metadata, only serialising object values which have changed since it was last flattened or read.
+	 */
+	public Map<String, String> flatten(Metadata metadata) {
+		return metadata.toFlatMap(this::flattenObjectValue);
+	}
+
+	/**
+	 * @return metadata which is expanded from the flat form when first accessed.
+	 */
+	public Metadata toMetadata(Map<String, String> flatMetadata) {
+		return flatMetadata != null ? new Metadata(flatMetadata, this::expandObjectValues) : new Metadata();
+	}
+
 	public Map<String, String> flattenObjectValues(Map<String, Object> metadataWithPossibleObjectValues) {
 		if (metadataWithPossibleObjectValues == null) return null;
 
@@ -27,16 +42,20 @@ public class BranchMetadataHelper {
 			if (object instanceof String) {
 				flatMap.put(key, (String) object);
 			} else {
-				try {
-					flatMap.put(key, OBJECT_PREFIX + objectMapper.writeValueAsString(object));
-				} catch (JsonProcessingException e) {
-					throw new ElasticVCRuntimeException("Failed to serialise branch metadata", e);
-				}
+				flatMap.put(key, flattenObjectValue(object));
 			}
 		}
 		return flatMap;
 	}
 
+	private String flattenObjectValue(Object object) {
+		try {
+			return OBJECT_PREFIX + objectMapper.writeValueAsString(object);
+		} catch (JsonProcessingException e) {
+			throw new ElasticVCRuntimeException("Failed to serialise branch metadata", e);
+		}
+	}
+
 	public Map<String, Object> expandObjectValues(Map<String, String> metadata) {
 		if (metadata == null) return null;
 
@@ -3,33 +3,46 @@ package io.kaicode.elasticvc.api;
 import co.elastic.clients.elasticsearch._types.ElasticsearchException;
 import co.elastic.clients.elasticsearch._types.SortOrder;
 import co.elastic.clients.elasticsearch._types.query_dsl.BoolQuery;
-import co.elastic.clients.elasticsearch._types.query_dsl.QueryBuilders;
+import co.elastic.clients.elasticsearch.core.search.Hit;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Strings;
 import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.Striped;
 import io.kaicode.elasticvc.domain.*;
 import io.kaicode.elasticvc.repositories.BranchRepository;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageImpl;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.elasticsearch.client.elc.ElasticsearchTemplate;
 import org.springframework.data.elasticsearch.client.elc.NativeQuery;
 import org.springframework.data.elasticsearch.client.elc.NativeQueryBuilder;
 import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.MultiGetItem;
+import org.springframework.data.elasticsearch.core.RefreshPolicy;
 import org.springframework.data.elasticsearch.core.SearchHit;
 import org.springframework.data.elasticsearch.core.SearchHits;
 import org.springframework.data.elasticsearch.core.SearchHitsIterator;
+import org.springframework.data.elasticsearch.core.mapping.IndexCoordinates;
+import org.springframework.data.elasticsearch.core.query.ByQueryResponse;
 import org.springframework.data.elasticsearch.core.query.DeleteQuery;
 import org.springframework.data.elasticsearch.core.query.FetchSourceFilter;
+import org.springframework.data.elasticsearch.core.query.IndexQueryBuilder;
 import org.springframework.data.elasticsearch.core.query.Query;
+import org.springframework.data.elasticsearch.core.query.SeqNoPrimaryTerm;
 import org.springframework.data.elasticsearch.core.query.UpdateQuery;
 import org.springframework.stereotype.Service;
 import org.springframework.util.Assert;
 
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.Lock;
 import java.util.stream.Collectors;
 
 import static co.elastic.clients.elasticsearch._types.query_dsl.QueryBuilders.*;
@@ -43,6 +56,23 @@ public class BranchService {
 
 	public static final String LOCK_METADATA_KEY = "lock";
 
+	private static final int LOCK_ATTEMPTS = 5;
+
+	private static final int LOCK_RETRY_BACKOFF_MILLIS = 20;
+
+	private static final int LOCK_STRIPES = 64;
+
+	// Branch listings leave out the fields which grow with the branch, these are loaded if used
+	private static final String[] BRANCH_LISTING_EXCLUDED_FIELDS = {Branch.Fields.VERSIONS_REPLACED, Branch.Fields.METADATA_INTERNAL};
+
+	// Only the fields needed to work out the state of a branch
+	private static final FetchSourceFilter STATE_SOURCE_FILTER = new FetchSourceFilter(true,
+			new String[]{Entity.Fields.PATH, Entity.Fields.START, Branch.Fields.BASE, Branch.Fields.HEAD, Branch.Fields.CONTAINS_CONTENT}, null);
+
+	// Only the fields which change the criteria built for descendants of a branch
+	private static final FetchSourceFilter HEAD_SOURCE_FILTER = new FetchSourceFilter(true,
+			new String[]{Entity.Fields.PATH, Branch.Fields.HEAD, Branch.Fields.METADATA_INTERNAL}, null);
+
 	@Autowired
 	private BranchRepository branchRepository;
 
@@ -52,13 +82,40 @@ public class BranchService {
 	@Autowired
 	private VersionControlHelper versionControlHelper;
 
+	@Autowired
+	private BranchVersionCache branchVersionCache;
+
+	@Value("${elasticvc.rollback.update-by-query-slices:0}")
+	private int rollbackUpdateByQuerySlices;
+
+	@Autowired
+	private BranchCriteriaCache branchCriteriaCache;
+
+	@Autowired
+	private InheritedMetadataCache inheritedMetadataCache;
+
+	@Autowired
+	private ElasticVCMetrics metrics;
+
+	@Autowired
+	private ElasticVCExecutor executor;
+
+	@Autowired
+	private VersionsReplacedLoader versionsReplacedLoader;
+
+	@Value("${elasticvc.branch.versions-replaced.snapshot-interval:0}")
+	private int versionsReplacedSnapshotInterval;
+
+	// Number of branch versions read per search when paging through all matches
+	private int branchPageSize = 1_000;
+
 	private final BranchMetadataHelper branchMetadataHelper;
 
 	private final List<CommitListener> commitListeners;
 
 	private final List<BranchSaveListener> branchSaveListeners;
 
-	private final Object branchLockSyncObject = new Object();
+	private final Striped<Lock> branchLockStripes = Striped.lock(LOCK_STRIPES);
 
 	private final Logger logger = LoggerFactory.getLogger(getClass());
 
@@ -131,8 +188,7 @@ public class BranchService {
 		if (branch.getMetadata() == null) {
 			branch.setMetadata(new Metadata());
 		}
-		final Map<String, String> flatMetadata = branchMetadataHelper.flattenObjectValues(branch.getMetadata().getAsMap());
-		branch.setMetadataInternal(flatMetadata);
+		branch.setMetadataInternal(branchMetadataHelper.flatten(branch.getMetadata()));
 	}
 
 	public boolean exists(String path) {
@@ -141,23 +197,45 @@ public class BranchService {
 
 	public void deleteAll() {
 		branchRepository.deleteAll();
+		branchVersionCache.invalidateAll();
+		branchCriteriaCache.invalidateAll();
+		versionsReplacedLoader.invalidateAll();
+		inheritedMetadataCache.invalidateAll();
 	}
 
 	public Branch findLatest(String path) {
-		NativeQuery query = getBranchQuery(path, true);
-		SearchHits<Branch> results = elasticsearchOperations.search(query, Branch.class);
-		final List<Branch> branches = results.stream().map(SearchHit::getContent).toList();
-		Branch branch = null;
-		Branch parentBranch = null;
+		Assert.notNull(path, "The path argument is required, it must not be null.");
+		return metrics.time("elasticvc.branch.find-latest", ElasticVCMetrics.branchTags(path), () -> doFindLatest(path));
+	}
 
-		for (Branch b : branches) {
-			if (b.getPath().equals(path)) {
-				if (branch != null) {
-					return illegalState("There should not be more than one version of branch " + path + " with no end date.");
+	private Branch doFindLatest(String path) {
+		final String parentPath = PathUtil.getParentPath(path);
+		Branch branch = branchVersionCache.getLatest(path);
+		Branch parentBranch = parentPath != null ? branchVersionCache.getLatest(parentPath) : null;
+
+		if (branch == null || (parentPath != null && parentBranch == null)) {
+			branch = null;
+			parentBranch = null;
+			final long cacheGeneration = branchVersionCache.getGeneration();
+			NativeQuery query = getBranchQuery(path, true);
+			SearchHits<Branch> results = elasticsearchOperations.search(query, Branch.class);
+			final List<Branch> branches = results.stream().map(SearchHit::getContent).toList();
+
+			for (Branch b : branches) {
+				if (b.getPath().equals(path)) {
+					if (branch != null) {
+						return illegalState("There should not be more than one version of branch " + path + " with no end date.");
+					}
+					branch = b;
+				} else {
+					parentBranch = b;
 				}
-				branch = b;
-			} else {
-				parentBranch = b;
+			}
+			if (branch != null) {
+				branchVersionCache.putLatest(branch, cacheGeneration);
+			}
+			if (parentBranch != null) {
+				branchVersionCache.putLatest(parentBranch, cacheGeneration);
 			}
 		}
 
@@ -202,28 +280,77 @@ public class BranchService {
 		if (branch == null) {
 			throw new BranchNotFoundException("Branch '" + path + "' does not exist.");
 		}
-		if (includeInheritedMetadata) {
-			String parentPath = PathUtil.getParentPath(branch.getPath());
-			if (parentPath != null) {
-				Branch parent = findBranchOrThrow(parentPath, true);
-				if (parent.getMetadataInternal() != null) {
-					final Metadata metadata = branch.getMetadata();
-					final Metadata parentMetadata = parent.getMetadata();
-					parentMetadata.getAsMap().forEach((key, value) -> {
-						if (!LOCK_METADATA_KEY.equals(key) && !metadata.containsKey(key)) {
-							metadata.getAsMap().put(key, value);
-						}
-					});
+		if (includeInheritedMetadata && !PathUtil.isRoot(path)) {
+			final Metadata metadata = branch.getMetadata();
+			findInheritedMetadata(path).getAsMap().forEach((key, value) -> {
+				if (!metadata.containsKey(key)) {
+					metadata.getAsMap().put(key, value);
 				}
-			}
+			});
 		}
 		return branch;
 	}
 
+	/*
+	  Metadata of all ancestors, merged so that the nearest ancestor wins. Lock metadata is never inherited.
+	  Merging stops at an ancestor without stored metadata, as the ancestors above it are only inherited through it.
+	  The heads of the ancestors are read first, they are part of the cache key, and the metadata is only read with a second search when not cached.
+	 */
+	private Metadata findInheritedMetadata(String path) {
+		final List<String> ancestorPaths = new ArrayList<>();
+		for (String ancestorPath = PathUtil.getParentPath(path); ancestorPath != null; ancestorPath = PathUtil.getParentPath(ancestorPath)) {
+			ancestorPaths.add(ancestorPath);
+		}
+		final Map<String, Branch> ancestorHeads = findLatestAncestors(ancestorPaths, new String[]{Entity.Fields.PATH, Branch.Fields.HEAD});
+		final List<Date> heads = ancestorPaths.stream().map(ancestorPath -> getAncestor(ancestorHeads, ancestorPath).getHead()).toList();
+		Metadata inherited = inheritedMetadataCache.get(path, heads);
+		if (inherited != null) {
+			return inherited;
+		}
+		final long cacheGeneration = inheritedMetadataCache.getGeneration();
+		final Map<String, Branch> ancestors = findLatestAncestors(ancestorPaths, new String[]{Entity.Fields.PATH, Branch.Fields.METADATA_INTERNAL});
+
+		inherited = new Metadata();
+		for (String ancestorPath : ancestorPaths) {
+			final Branch ancestor = getAncestor(ancestors, ancestorPath);
+			if (ancestor.getMetadataInternal() == null) {
+				break;
+			}
+			final Metadata metadata = inherited;
+			branchMetadataHelper.toMetadata(ancestor.getMetadataInternal()).getAsMap().forEach((key, value) -> {
+				if (!LOCK_METADATA_KEY.equals(key) && !metadata.containsKey(key)) {
+					metadata.getAsMap().put(key, value);
+				}
+			});
+		}
+		inheritedMetadataCache.put(path, heads, inherited, cacheGeneration);
+		return inherited;
+	}
+
+	private Map<String, Branch> findLatestAncestors(List<String> ancestorPaths, String[] fields) {
+		final Map<String, Branch> ancestors = new HashMap<>();
+		elasticsearchOperations.search(new NativeQueryBuilder()
+				.withQuery(bool(b -> b
+						.must(termsQuery(Entity.Fields.PATH, ancestorPaths))
+						.mustNot(existsQuery(Entity.Fields.END))))
+				.withSourceFilter(new FetchSourceFilter(true, fields, null))
+				.withPageable(PageRequest.of(0, ancestorPaths.size()))
+				.build(), Branch.class)
+				.forEach(hit -> ancestors.put(hit.getContent().getPath(), hit.getContent()));
+		return ancestors;
+	}
+
+	private static Branch getAncestor(Map<String, Branch> ancestors, String ancestorPath) {
+		final Branch ancestor = ancestors.get(ancestorPath);
+		if (ancestor == null) {
+			throw new BranchNotFoundException("Branch '" + ancestorPath + "' does not exist.");
+		}
+		return ancestor;
+	}
+
 	private Branch updatePublicMetadata(Branch branch) {
 		if (branch != null) {
-			final Map<String, Object> publicMetadata = branchMetadataHelper.expandObjectValues(branch.getMetadataInternal());
-			branch.setMetadata(new Metadata(publicMetadata));
+			branch.setMetadata(branchMetadataHelper.toMetadata(branch.getMetadataInternal()));
 		}
 		return branch;
 	}
@@ -242,19 +369,71 @@ public class BranchService {
 		return updatePublicMetadata(branchVersions.iterator().next());
 	}
 
+	/**
+	 * Versions replaced and metadata are not read with the branch versions, they are loaded when first used.
+	 * @see #loadExcludedFields(Collection)
+	 */
 	@SuppressWarnings("unused")
 	public Page<Branch> findAllVersions(String path, Pageable pageable) {
 		SearchHits<Branch> results = elasticsearchOperations.search(
 				new NativeQueryBuilder()
 						.withQuery(termQuery(Entity.Fields.PATH, path))
 						.withSort(s -> s.field(fb -> fb.field(Entity.Fields.START)))
+						.withSourceFilter(new FetchSourceFilter(true, null, BRANCH_LISTING_EXCLUDED_FIELDS))
 						.withPageable(pageable)
 						.build(), Branch.class);
 
-		return new PageImpl<>(results.get().map(SearchHit::getContent).map(this::updatePublicMetadata).collect(toList()), pageable, results.getTotalHits());
+		return new PageImpl<>(results.get().map(SearchHit::getContent).map(this::excludeFields).collect(toList()), pageable, results.getTotalHits());
+	}
+
+	/**
+	 * Loads the versions replaced and metadata of branches found by a listing method with one request.
+	 * Branches which already have these fields are left as they are.
+	 */
+	public void loadExcludedFields(Collection<Branch> branches) {
+		final List<String> ids = branches.stream().filter(Branch::isFieldsExcluded).map(Branch::getInternalId).distinct().toList();
+		if (ids.isEmpty()) {
+			return;
+		}
+		final Map<String, Branch> loaded = new HashMap<>();
+		for (MultiGetItem<Branch> item : elasticsearchOperations.multiGet(new NativeQueryBuilder().withIds(ids).build(), Branch.class)) {
+			if (item.hasItem()) {
+				loaded.put(item.getItem().getInternalId(), updatePublicMetadata(item.getItem()));
+			}
+		}
+		for (Branch branch : branches) {
+			if (branch.isFieldsExcluded()) {
+				final Branch loadedBranch = loaded.get(branch.getInternalId());
+				branch.setExcludedFieldsLoader(b -> loadedBranch != null ? loadedBranch : findExcludedFields(b));
+				branch.loadExcludedFields();
+			}
+		}
+	}
+
+	private Branch excludeFields(Branch branch) {
+		branch.setExcludedFieldsLoader(this::findExcludedFields);
+		return branch;
+	}
+
+	private Branch findExcludedFields(Branch branch) {
+		final Branch loaded = elasticsearchOperations.get(branch.getInternalId(), Branch.class);
+		if (loaded == null) {
+			throw new IllegalStateException("Version " + branch.getInternalId() + " of branch " + branch.getPath() + " no longer exists.");
+		}
+		return updatePublicMetadata(loaded);
 	}
 
 	public Branch findAtTimepointOrThrow(String path, Date timepoint) {
+		return metrics.time("elasticvc.branch.find-at-timepoint", ElasticVCMetrics.branchTags(path), () -> doFindAtTimepointOrThrow(path, timepoint));
+	}
+
+	private Branch doFindAtTimepointOrThrow(String path, Date timepoint) {
+		final Branch cachedBranch = branchVersionCache.getAtTimepoint(path, timepoint);
+		if (cachedBranch != null) {
+			return updatePublicMetadata(cachedBranch);
+		}
+
+		final long cacheGeneration = branchVersionCache.getGeneration();
 		SearchHits<Branch> response = elasticsearchOperations.search(new NativeQueryBuilder()
 				.withQuery(bool(b -> b
 						.must(termQuery(Entity.Fields.PATH, path))
@@ -284,42 +463,270 @@ public class BranchService {
 		}
 
 		final Branch branch = branches.get(0);
+		branchVersionCache.putAtTimepoint(timepoint, branch, cacheGeneration);
 		updatePublicMetadata(branch);
 		return branch;
 	}
 
+	/**
+	 * Finds the version of the branch at each timepoint along with the version of each ancestor at the base of its child, ending with MAIN.
+	 * Versions are taken from the cache where possible. Otherwise each level of the path is read with one search,
+	 * with a clause per timepoint which matches only the version at that timepoint.
+	 * @return one time slice for each of the timepoints.
+	 */
+	public List<List<Branch>> findTimeSlices(String path, List<Date> timepoints) {
+		final long cacheGeneration = branchVersionCache.getGeneration();
+		final List<List<Branch>> timeSlices = new ArrayList<>();
+		timepoints.forEach(timepoint -> timeSlices.add(new ArrayList<>()));
+		final List<Date> levelTimepoints = new ArrayList<>(timepoints);
+		for (String levelPath = path; levelPath != null; levelPath = PathUtil.getParentPath(levelPath)) {
+			final List<Branch> versions = findAtTimepoints(levelPath, levelTimepoints, cacheGeneration);
+			for (int i = 0; i < versions.size(); i++) {
+				timeSlices.get(i).add(versions.get(i));
+				levelTimepoints.set(i, versions.get(i).getBase());
+			}
+		}
+		return timeSlices;
+	}
+
+	// The version of the branch at each timepoint, with at most one search for the timepoints which are not cached
+	private List<Branch> findAtTimepoints(String path, List<Date> timepoints, long cacheGeneration) {
+		final Map<Long, Branch> versionsByTimepoint = new HashMap<>();
+		final Set<Long> uncached = new LinkedHashSet<>();
+		for (Date timepoint : timepoints) {
+			final Branch cachedBranch = branchVersionCache.getAtTimepoint(path, timepoint);
+			if (cachedBranch != null) {
+				versionsByTimepoint.put(timepoint.getTime(), updatePublicMetadata(cachedBranch));
+			} else {
+				uncached.add(timepoint.getTime());
+			}
+		}
+		if (!uncached.isEmpty()) {
+			final BoolQuery.Builder atTimepoints = bool();
+			for (Long time : uncached) {
+				atTimepoints.should(bool(b -> b
+						.must(range(rq -> rq.date(drq -> drq.field(Entity.Fields.START).lte(String.valueOf(time)))))
+						.must(bool(bq -> bq
+								.should(bool(eb -> eb.mustNot(existsQuery(Entity.Fields.END))))
+								.should(range(r -> r.date(drq -> drq.field(Entity.Fields.END).gt(String.valueOf(time)))))))));
+			}
+			final SearchHits<Branch> hits = elasticsearchOperations.search(new NativeQueryBuilder()
+					.withQuery(bool(b -> b
+							.must(termQuery(Entity.Fields.PATH, path))
+							.must(atTimepoints.build()._toQuery())))
+					.withPageable(PageRequest.of(0, uncached.size()))
+					.build(), Branch.class);
+			final List<Branch> versions = hits.get().map(SearchHit::getContent).toList();
+			for (Long time : uncached) {
+				final Branch version = versions.stream()
+						.filter(branch -> branch.getStart().getTime() <= time && (branch.getEnd() == null || branch.getEnd().getTime() > time))
+						.findFirst()
+						.orElseThrow(() -> new IllegalStateException("Branch '" + path + "' does not exist at timepoint " + new Date(time) + " (" + time + ")."));
+				branchVersionCache.putAtTimepoint(new Date(time), version, cacheGeneration);
+				versionsByTimepoint.put(time, updatePublicMetadata(version));
+			}
+		}
+		return timepoints.stream().map(timepoint -> versionsByTimepoint.get(timepoint.getTime())).toList();
+	}
+
+	/**
+	 * Versions replaced and metadata are not read with the branches, they are loaded when first used.
+	 * @see #loadExcludedFields(Collection)
+	 */
 	public List<Branch> findAll() {
-		SearchHits<Branch> searchHits = elasticsearchOperations.search(new NativeQueryBuilder()
-				.withQuery(bool(b -> b.mustNot(eb -> eb.exists(ef -> ef.field(Entity.Fields.END)))))
-				.withSort(sb -> sb.field(fb -> fb.field(Entity.Fields.PATH)))
-				.withPageable(PageRequest.of(0, 10000))
-				.build(), Branch.class);
-		List<Branch> all = new ArrayList<>();
-		searchHits.forEach(result -> all.add(result.getContent()));
-		return all;
+		return findAllLatest(bool());
 	}
 
 	public List<Branch> findChildren(String path) {
 		return findChildren(path, false); //All descendants by default
 	}
 
+	/**
+	 * Versions replaced and metadata are not read with the branches, they are loaded when first used.
+	 * @see #loadExcludedFields(Collection)
+	 */
 	public List<Branch> findChildren(String path, boolean immediateChildren) {
-		// mustNot(existsQuery(Entity.Fields.END)).must(prefixQuery(Entity.Fields.PATH, path + "/"))
-		SearchHits<Branch> results = elasticsearchOperations.search(NativeQuery.builder()
-				.withQuery(q -> q.bool(BoolQuery.of(b -> b.mustNot(QueryBuilders.exists().field(Entity.Fields.END).build()._toQuery())
-						.must(prefix().field(Entity.Fields.PATH).value(path + "/").build()._toQuery()))))
+		return findAllLatest(bool().must(descendantsQuery(path, immediateChildren ? 1 : null)));
+	}
+
+	/**
+	 * Finds a page of the descendants of a branch, in path order.
+	 * Versions replaced and metadata are not read with the branches, they are loaded when first used.
+	 * @param levels number of levels below the branch to include, 1 for immediate children only.
+	 */
+	public Page<Branch> findChildren(String path, int levels, Pageable pageable) {
+		Assert.isTrue(levels > 0, "Levels must be greater than zero.");
+		SearchHits<Branch> results = elasticsearchOperations.search(new NativeQueryBuilder()
+				.withQuery(bool(b -> b
+						.must(descendantsQuery(path, levels))
+						.mustNot(existsQuery(Entity.Fields.END))))
 				.withSort(sb -> sb.field(fb -> fb.field(Entity.Fields.PATH)))
+				.withSourceFilter(new FetchSourceFilter(true, null, BRANCH_LISTING_EXCLUDED_FIELDS))
+				.withPageable(pageable)
 				.build(), Branch.class);
+		return new PageImpl<>(results.get().map(SearchHit::getContent).map(this::excludeFields).collect(toList()), pageable, results.getTotalHits());
+	}
+
+	/*
+	  Matches the descendants of a branch down to the given number of levels below it, or at any depth when levels is null.
+	  Branch documents written before the ancestors field existed are matched on their path instead,
+	  so that no children are missed before updateBranchPathFields has been run.
+	 */
+	private static co.elastic.clients.elasticsearch._types.query_dsl.Query descendantsQuery(String path, Integer levels) {
+		final BoolQuery.Builder pathFields = bool();
+		final co.elastic.clients.elasticsearch._types.query_dsl.Query legacyPath;
+		if (levels == null) {
+			pathFields.must(termQuery(Branch.Fields.ANCESTORS, path));
+			legacyPath = prefixQuery(Entity.Fields.PATH, path + PathUtil.SEPARATOR);
+		} else {
+			if (levels == 1) {
+				pathFields.must(termQuery(Branch.Fields.PARENT_PATH, path));
+			} else {
+				final int maxDepth = PathUtil.getDepth(path) + levels;
+				pathFields.must(termQuery(Branch.Fields.ANCESTORS, path))
+						.must(range(rq -> rq.number(nrq -> nrq.field(Branch.Fields.DEPTH).lte((double) maxDepth))));
+			}
+			legacyPath = regexpQuery(Entity.Fields.PATH, escapeRegexp(path) + "(" + PathUtil.SEPARATOR + "[^" + PathUtil.SEPARATOR + "]+){1," + levels + "}");
+		}
+		return bool(b -> b
+				.should(pathFields.build()._toQuery())
+				.should(bool(bq -> bq.mustNot(existsQuery(Branch.Fields.ANCESTORS)).must(legacyPath))));
+	}
+
+	private static String escapeRegexp(String value) {
+		final StringBuilder escaped = new StringBuilder();
+		for (char c : value.toCharArray()) {
+			if (!Character.isLetterOrDigit(c)) {
+				escaped.append('\\');
+			}
+			escaped.append(c);
+		}
+		return escaped.toString();
+	}
+
+	/**
+	 * Finds the state of many branches, reading the latest version of the branches and their parents with one search.
+	 * @return the state of each branch which exists, in path order.
+	 */
+	public Map<String, Branch.BranchState> findStates(Collection<String> paths) {
+		final Set<String> pathsAndParents = new HashSet<>(paths);
+		paths.stream().map(PathUtil::getParentPath).filter(Objects::nonNull).forEach(pathsAndParents::add);
+		return getStates(findAllLatest(bool().must(termsQuery(Entity.Fields.PATH, pathsAndParents)), STATE_SOURCE_FILTER), new HashSet<>(paths));
+	}
+
+	/**
+	 * Finds the latest versions of a branch and its ancestors with one search, holding only the path, head and internal metadata.
+	 * Used to check that cached branch criteria were built from the current ancestors.
+	 * @return the latest versions of the branches which exist, in path order.
+	 */
+	public List<Branch> findLatestHeadsOfBranchAndAncestors(String path) {
+		final List<String> paths = new ArrayList<>();
+		for (String ancestorPath = path; ancestorPath != null; ancestorPath = PathUtil.getParentPath(ancestorPath)) {
+			paths.add(ancestorPath);
+		}
+		return findAllLatest(bool().must(termsQuery(Entity.Fields.PATH, paths)), HEAD_SOURCE_FILTER);
+	}
+
+	/**
+	 * Finds the state of a branch and all of its descendants, reading the latest versions with one search.
+	 * @return the state of each branch in the subtree, in path order.
+	 */
+	public Map<String, Branch.BranchState> findSubtreeStates(String path) {
+		final BoolQuery.Builder query = bool()
+				.should(termQuery(Entity.Fields.PATH, path))
+				.should(descendantsQuery(path, null));
+		final String parentPath = PathUtil.getParentPath(path);
+		if (parentPath != null) {
+			query.should(termQuery(Entity.Fields.PATH, parentPath));
+		}
+		final List<Branch> branches = findAllLatest(query, STATE_SOURCE_FILTER);
+		final Set<String> subtreePaths = branches.stream().map(Branch::getPath).filter(branchPath -> !branchPath.equals(parentPath)).collect(Collectors.toSet());
+		return getStates(branches, subtreePaths);
+	}
 
-		final List<Branch> children = new ArrayList<>();
-		results.forEach(r -> children.add(updatePublicMetadata(r.getContent())));
-		if (immediateChildren) {
-			Branch parent = findBranchOrThrow(path);
-			return children.stream()
-					.filter(parent::isParent)
-					.collect(toList());
+	private Map<String, Branch.BranchState> getStates(List<Branch> latestVersions, Set<String> paths) {
+		final Map<String, Branch> branchesByPath = new HashMap<>();
+		latestVersions.forEach(branch -> branchesByPath.put(branch.getPath(), branch));
+		final Map<String, Branch.BranchState> states = new LinkedHashMap<>();
+		for (Branch branch : latestVersions) {
+			final String path = branch.getPath();
+			if (!paths.contains(path)) {
+				continue;
+			}
+			if (PathUtil.isRoot(path)) {
+				// Root branch is always up to date
+				states.put(path, Branch.BranchState.UP_TO_DATE);
+				continue;
+			}
+			final Branch parentBranch = branchesByPath.get(PathUtil.getParentPath(path));
+			if (parentBranch == null) {
+				throw new IllegalStateException("Parent branch of " + path + " not found.");
+			}
+			branch.updateState(parentBranch.getHead());
+			states.put(path, branch.getState());
 		}
-		return children;
+		return states;
+	}
+
+	private List<Branch> findAllLatest(BoolQuery.Builder query) {
+		final List<Branch> branches = findAllLatest(query, new FetchSourceFilter(true, null, BRANCH_LISTING_EXCLUDED_FIELDS));
+		branches.forEach(this::excludeFields);
+		return branches;
+	}
+
+	// Reads every matching latest branch version in path order, a page at a time using search_after so results are not limited by the result window
+	private List<Branch> findAllLatest(BoolQuery.Builder query, FetchSourceFilter sourceFilter) {
+		final Query latestVersions = new NativeQueryBuilder()
+				.withQuery(bool(b -> b.must(query.build()._toQuery()).mustNot(existsQuery(Entity.Fields.END))))
+				.withSort(sb -> sb.field(fb -> fb.field(Entity.Fields.PATH)))
+				.withSourceFilter(sourceFilter)
+				.withPageable(PageRequest.of(0, branchPageSize))
+				.build();
+		final List<Branch> branches = new ArrayList<>();
+		while (true) {
+			final SearchHits<Branch> page = elasticsearchOperations.search(latestVersions, Branch.class);
+			page.forEach(hit -> branches.add(hit.getContent()));
+			if (page.getSearchHits().size() < branchPageSize) {
+				return branches;
+			}
+			latestVersions.setSearchAfter(page.getSearchHit(page.getSearchHits().size() - 1).getSortValues());
+		}
+	}
+
+	/**
+	 * Sets the parent path, depth and ancestors fields on branch documents written before those fields existed.
+	 * The branch mapping must already hold the new fields, which ComponentService.initialiseIndexAndMappingForPersistentClasses puts on existing indices at startup.
+	 * @return the number of branch documents updated.
+	 */
+	public long updateBranchPathFields() {
+		final ByQueryResponse response = elasticsearchOperations.updateByQuery(UpdateQuery.builder(new NativeQueryBuilder()
+						// MAIN has no ancestors so only the depth shows whether it has been updated
+						.withQuery(bool(b -> b
+								.should(bool(bq -> bq.mustNot(existsQuery(Branch.Fields.DEPTH))))
+								.should(bool(bq -> bq
+										.must(range(rq -> rq.number(nrq -> nrq.field(Branch.Fields.DEPTH).gt(1.0))))
+										.mustNot(existsQuery(Branch.Fields.ANCESTORS))))))
+						.build())
+				.withScript("""
+						String path = ctx._source.path;
+						List ancestors = new ArrayList();
+						for (int i = path.indexOf('/'); i != -1; i = path.indexOf('/', i + 1)) {
+							ancestors.add(path.substring(0, i));
+						}
+						ctx._source.ancestors = ancestors;
+						ctx._source.parentPath = ancestors.isEmpty() ? null : ancestors.get(ancestors.size() - 1);
+						ctx._source.depth = ancestors.size() + 1;""")
+				.withScriptType(INLINE)
+				.withLang("painless")
+				.withRefreshPolicy(RefreshPolicy.IMMEDIATE)
+				.build(), elasticsearchOperations.getIndexCoordinatesFor(Branch.class));
+		if (!response.getFailures().isEmpty()) {
+			throw new IllegalStateException("Failed to update branch path fields: " + response.getFailures().get(0).getCause());
+		}
+		branchVersionCache.invalidateAll();
+		branchCriteriaCache.invalidateAll();
+		logger.info("Updated path fields on {} branch documents.", response.getUpdated());
+		return response.getUpdated();
 	}
 
 	@SuppressWarnings("unused")
@@ -336,36 +743,123 @@ public class BranchService {
 	}
 
 	private Commit openCommit(String branchPath, String mergeSourceBranchPath, Commit.CommitType commitType, String sourceBranchLockMetadata, String targetBranchLockMetadata) {
-		synchronized (branchLockSyncObject) {
-			Branch sourceBranch = null;
-			if (commitType == Commit.CommitType.PROMOTION) {
-				// Lock source branch as well as target
-				sourceBranch = lockBranch(mergeSourceBranchPath, sourceBranchLockMetadata);
+		// Serialise lock attempts on the same branches within this instance, the conditional write protects against other instances.
+		// The stripes are always taken in the same order so promotions in opposite directions can not deadlock.
+		final List<String> paths = mergeSourceBranchPath != null ? List.of(branchPath, mergeSourceBranchPath) : List.of(branchPath);
+		final Iterable<Lock> stripes = branchLockStripes.bulkGet(paths);
+		final String[] tags = ElasticVCMetrics.and(ElasticVCMetrics.branchTags(branchPath), ElasticVCMetrics.TAG_COMMIT_TYPE, commitType.name());
+		return metrics.time("elasticvc.commit.open", tags, () -> {
+			final long start = System.nanoTime();
+			metrics.timeLockWait(tags, () -> stripes.forEach(Lock::lock));
+			try {
+				final Commit commit = doOpenCommit(branchPath, mergeSourceBranchPath, commitType, sourceBranchLockMetadata, targetBranchLockMetadata);
+				commit.getTimings().recordLock(System.nanoTime() - start);
+				return commit;
+			} finally {
+				stripes.forEach(Lock::unlock);
 			}
-			Branch branch = lockBranch(branchPath, targetBranchLockMetadata);
-			Commit commit = new Commit(branch, commitType, this::completeCommit, this::rollbackCommit);
-			if (commitType == Commit.CommitType.PROMOTION) {
-				commit.setVersionsReplacedForPromotion(sourceBranch.getVersionsReplaced());
+		});
+	}
+
+	private Commit doOpenCommit(String branchPath, String mergeSourceBranchPath, Commit.CommitType commitType, String sourceBranchLockMetadata, String targetBranchLockMetadata) {
+		Branch sourceBranch = null;
+		if (commitType == Commit.CommitType.PROMOTION) {
+			// Lock source branch as well as target
+			sourceBranch = lockBranch(mergeSourceBranchPath, sourceBranchLockMetadata);
+		}
+		Branch branch;
+		try {
+			branch = lockBranch(branchPath, targetBranchLockMetadata);
+		} catch (RuntimeException e) {
+			if (sourceBranch != null) {
+				unlock(mergeSourceBranchPath);
 			}
-			logger.info("Open commit on {} at {}", branchPath, commit.getTimepoint().getTime());
-			return commit;
+			throw e;
 		}
+		Commit commit = new Commit(branch, commitType, this::completeCommit, this::rollbackCommit);
+		if (commitType == Commit.CommitType.PROMOTION) {
+			commit.setVersionsReplacedForPromotion(sourceBranch.getSharedVersionsReplaced());
+		}
+		logger.info("Open commit on {} at {}", branchPath, commit.getTimepoint().getTime());
+		return commit;
 	}
 
+	/**
+	 * Locks the latest version of the branch using a conditional write, so that only one caller can lock the branch
+	 * even when several application instances share the same indices.
+	 * The branch is read again and the lock retried if the branch document was changed by something other than a lock in the meantime.
+	 * @throws IllegalStateException if the branch is already locked.
+	 */
 	public Branch lockBranch(String branchPath, String lockMetadata) {
-		Branch branch = findBranchOrThrow(branchPath);
-		return lockBranch(branch, lockMetadata);
+		for (int attempt = 1; ; attempt++) {
+			LatestForUpdate latest = findLatestForUpdate(branchPath);
+			try {
+				return lockBranch(latest.branch(), lockMetadata, latest.seqNoPrimaryTerm());
+			} catch (OptimisticLockingFailureException e) {
+				if (attempt == LOCK_ATTEMPTS) {
+					throw new IllegalStateException(String.format("Failed to lock branch %s after %s attempts because of concurrent updates", branchPath, attempt), e);
+				}
+				logger.debug("Branch {} changed while locking, attempt {} of {}", branchPath, attempt, LOCK_ATTEMPTS);
+				backOff(attempt);
+			}
+		}
+	}
+
+	// Waits longer after each failed attempt, with jitter so that competing instances do not retry in step
+	private void backOff(int attempt) {
+		try {
+			Thread.sleep(LOCK_RETRY_BACKOFF_MILLIS * attempt + ThreadLocalRandom.current().nextInt(LOCK_RETRY_BACKOFF_MILLIS));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting to lock branch.", e);
+		}
 	}
 
-	private Branch lockBranch(Branch branch, String lockMetadataMessage) {
+	/*
+	  When a sequence number and primary term are given the lock is a conditional write,
+	  which only succeeds if the branch document has not changed since they were read.
+	 */
+	private Branch lockBranch(Branch branch, String lockMetadataMessage, SeqNoPrimaryTerm ifUnchanged) {
 		if (branch.isLocked()) {
 			throw new IllegalStateException(String.format("Branch %s is already locked", branch.getPath()));
 		}
 		branch.setLocked(true);
 		branch.getMetadata().putString(LOCK_METADATA_KEY, lockMetadataMessage);
-		return save(branch);
+		return save(branch, ifUnchanged);
+	}
+
+	/*
+	  Reads the latest version straight from the index, bypassing the cache.
+	  The sequence number and primary term are read before the document so that a change made between the two reads fails the conditional write rather than being overwritten.
+	  They are read with the Elasticsearch client because the Branch entity does not map them, so that other saves of a branch are never conditional.
+	 */
+	private LatestForUpdate findLatestForUpdate(String path) {
+		final String index = elasticsearchOperations.getIndexCoordinatesFor(Branch.class).getIndexName();
+		final List<Hit<Object>> hits = ((ElasticsearchTemplate) elasticsearchOperations).execute(client -> client.search(s -> s
+						.index(index)
+						.query(bool(bq -> bq
+								.must(termQuery(Entity.Fields.PATH, path))
+								.mustNot(existsQuery(Entity.Fields.END))))
+						.seqNoPrimaryTerm(true)
+						.source(sc -> sc.fetch(false))
+						.size(2), Object.class))
+				.hits().hits();
+		if (hits.isEmpty()) {
+			throw new BranchNotFoundException("Branch '" + path + "' does not exist.");
+		}
+		if (hits.size() > 1) {
+			illegalState("There should not be more than one version of branch " + path + " with no end date.");
+		}
+		final Hit<Object> hit = hits.get(0);
+		final Branch branch = elasticsearchOperations.get(hit.id(), Branch.class);
+		if (branch == null) {
+			throw new OptimisticLockingFailureException("Branch " + path + " version " + hit.id() + " was deleted while reading it.");
+		}
+		return new LatestForUpdate(updatePublicMetadata(branch), new SeqNoPrimaryTerm(hit.seqNo(), hit.primaryTerm()));
 	}
 
+	private record LatestForUpdate(Branch branch, SeqNoPrimaryTerm seqNoPrimaryTerm) {}
+
 	@SuppressWarnings("unused")
 	public Branch updateMetadata(String path, Metadata metadata) {
 		return updateMetadata(path, metadata.getAsMap());
@@ -417,9 +911,15 @@ public class BranchService {
 	}
 
 	private void completeCommit(Commit commit) {
+		metrics.time("elasticvc.commit.complete", ElasticVCMetrics.commitTags(commit), () -> doCompleteCommit(commit));
+	}
+
+	private void doCompleteCommit(Commit commit) {
 		try {
 			for (CommitListener commitListener : commitListeners) {
+				final long start = System.nanoTime();
 				commitListener.preCommitCompletion(commit);
+				commit.getTimings().recordListener(commitListener.getClass().getSimpleName(), System.nanoTime() - start);
 			}
 		} catch (IllegalStateException | ElasticsearchException e) {
 			logger.error("Commit commitListener threw {}, rolling back commit {} on branch {}",
@@ -446,16 +946,17 @@ public class BranchService {
 		newBranchTimespan.setMetadata(oldBranchTimespan.getMetadata());
 
 		// Clear previous versions replaced for entity classes that have separate documents (i.e not inherit from MAIN)
-		Map<String, Set<String>> oldVersionsReplaced = oldBranchTimespan.getVersionsReplaced();
-		versionControlHelper.getParentBranchesExcludedEntityClassNames(newBranchTimespan).forEach(oldVersionsReplaced::remove);
+		Map<String, Set<String>> oldVersionsReplaced = oldBranchTimespan.getSharedVersionsReplaced();
+		final boolean versionsReplacedRemoved = oldVersionsReplaced.keySet().removeAll(versionControlHelper.getParentBranchesExcludedEntityClassNames(newBranchTimespan));
 		newBranchTimespan.addVersionsReplaced(oldVersionsReplaced);
 
+		final Map<String, Set<String>> versionsReplacedDelta = new HashMap<>(commit.getEntityVersionsReplaced());
 		newBranchTimespan.addVersionsReplaced(commit.getEntityVersionsReplaced());
 		newBranchTimespan.setCreation(oldBranchTimespan.getCreation());
 		newBranchTimespan.setLastPromotion(oldBranchTimespan.getLastPromotion());
 
-		// Preserve existing commit versions replaced
-		oldBranchTimespan.setVersionsReplaced(findBranchOrThrow(path).getVersionsReplaced());
+		// Preserve existing commit versions replaced, as stored
+		oldBranchTimespan.setStoredVersionsReplaced(findBranchOrThrow(path));
 
 		final List<Branch> newBranchVersionsToSave = new ArrayList<>();
 		newBranchVersionsToSave.add(oldBranchTimespan);
@@ -475,6 +976,7 @@ public class BranchService {
 			clearLock(oldSourceBranch);
 			if (!PathUtil.isRoot(path)) {
 				newBranchTimespan.addVersionsReplaced(commit.getVersionsReplacedForPromotion());
+				commit.getVersionsReplacedForPromotion().forEach((type, ids) -> versionsReplacedDelta.merge(type, ids, InternalIdSet::union));
 			} else {
 				// Root branch has no need for versions replaced collection.
 				newBranchTimespan.getVersionsReplaced().clear();
@@ -493,25 +995,81 @@ public class BranchService {
 			logger.debug("Updating branch base and clearing versionsReplaced {}", newSourceBranch);
 		}
 
+		if (!versionsReplacedRemoved) {
+			storeVersionsReplacedDelta(oldBranchTimespan, newBranchTimespan, versionsReplacedDelta);
+		}
+
 		logger.debug("Ending branch timespan {}", oldBranchTimespan);
 		logger.debug("Starting branch timespan {}", newBranchTimespan);
+		final long branchWriteStart = System.nanoTime();
 		saveAll(newBranchVersionsToSave);
-		logger.info("Completed commit on {} at {}", commit.getBranch().getPath(), commit.getTimepoint().getTime());
+		versionsReplacedLoader.put(newBranchTimespan);
+		commit.getTimings().recordBranchWrite(System.nanoTime() - branchWriteStart);
+		metrics.recordVersionsReplaced(newBranchTimespan);
+		logger.info("Completed commit on {} at {} type={} {}", commit.getBranch().getPath(), commit.getTimepoint().getTime(), commitType, commit.getTimings());
+	}
+
+	/*
+	  When a snapshot interval is set the new version only stores the versions replaced by this commit, building on the
+	  snapshot of the previous version, until the interval is reached and the full versions replaced are stored again.
+	  Versions replaced which are removed rather than added are always stored in full.
+	 */
+	private void storeVersionsReplacedDelta(Branch oldVersion, Branch newVersion, Map<String, Set<String>> delta) {
+		final int deltas = oldVersion.getVersionsReplacedDeltas() + 1;
+		if (versionsReplacedSnapshotInterval <= 0 || deltas >= versionsReplacedSnapshotInterval) {
+			return;
+		}
+		final Date snapshot = oldVersion.isVersionsReplacedDelta() ? oldVersion.getVersionsReplacedSnapshot() : oldVersion.getStart();
+		newVersion.setVersionsReplacedDelta(snapshot, deltas, delta, newVersion.getSharedVersionsReplaced());
 	}
 
 	private Branch save(Branch branch) {
+		return save(branch, null);
+	}
+
+	/*
+	  When a sequence number and primary term are given the write only succeeds if the document has not changed since they were read,
+	  otherwise the write always succeeds.
+	 */
+	private Branch save(Branch branch, SeqNoPrimaryTerm ifUnchanged) {
+		// A branch from a listing is written with its versions replaced and metadata, other branches already hold them
+		if (branch.isFieldsExcluded()) {
+			branch.loadExcludedFields();
+		}
+		branch.updatePathFields();
 		updateInternalMetadata(branch);
-		Branch persistedBranch = branchRepository.save(branch);
+		Branch persistedBranch;
+		if (ifUnchanged != null) {
+			elasticsearchOperations.index(new IndexQueryBuilder()
+					.withId(branch.getInternalId())
+					.withObject(branch)
+					.withSeqNoPrimaryTerm(ifUnchanged)
+					.build(), elasticsearchOperations.getIndexCoordinatesFor(Branch.class));
+			elasticsearchOperations.indexOps(Branch.class).refresh();
+			persistedBranch = branch;
+		} else {
+			persistedBranch = branchRepository.save(branch);
+		}
+		invalidateCaches(persistedBranch.getPath());
 		executePostSaveListeners(List.of(persistedBranch));
 		return persistedBranch;
 	}
 
-	private void saveAll(Iterable<Branch> branches) {
+	private void saveAll(Collection<Branch> branches) {
+		loadExcludedFields(branches);
+		branches.forEach(Branch::updatePathFields);
 		branches.forEach(this::updateInternalMetadata);
 		branchRepository.saveAll(branches);
+		branches.forEach(branch -> invalidateCaches(branch.getPath()));
 		executePostSaveListeners(branches);
 	}
 
+	private void invalidateCaches(String path) {
+		branchVersionCache.invalidate(path);
+		branchCriteriaCache.invalidate(path);
+		inheritedMetadataCache.invalidate(path);
+	}
+
 	private void executePostSaveListeners(Iterable<Branch> branches) {
 		for (BranchSaveListener listener : branchSaveListeners) {
 			branches.forEach(listener::postSaveCompletion);
@@ -519,6 +1077,10 @@ public class BranchService {
 	}
 
 	private void rollbackCommit(Commit commit) {
+		metrics.time("elasticvc.commit.rollback", ElasticVCMetrics.commitTags(commit), () -> doRollbackCommit(commit));
+	}
+
+	private void doRollbackCommit(Commit commit) {
 		logger.info("Rolling back commit on {} started at {}", commit.getBranch().getPath(), commit.getTimepoint().getTime());
 
 		@SuppressWarnings("unchecked")
@@ -541,6 +1103,7 @@ public class BranchService {
 		}
 		clearLock(branch);
 		save(branch);
+		logger.info("Rolled back commit on {} at {} type={} {}", branch.getPath(), commit.getTimepoint().getTime(), commit.getCommitType(), commit.getTimings());
 	}
 
 	public void rollbackCompletedCommit(Branch branchVersion, List<Class<? extends DomainEntity<?>>> domainTypes) {
@@ -552,10 +1115,11 @@ public class BranchService {
 		// Delete branch/commit then immediately lock the branch (again)
 		Branch previousBranchVersion = findAtTimepointOrThrow(path, new Date(timestamp - 1));
 		branchRepository.delete(branchVersion);
+		invalidateCaches(path);
 		previousBranchVersion.setEnd(null);
 		previousBranchVersion.setLocked(false);
 		// (Also saves the branch version)
-		lockBranch(previousBranchVersion, getLockMessageOrNull(branchVersion));
+		lockBranch(previousBranchVersion, getLockMessageOrNull(branchVersion), null);
 
 		SearchHits<Branch> searchHits = elasticsearchOperations.search(new NativeQueryBuilder().withQuery(
 				bq -> bq.bool(BoolQuery.of(b -> b
@@ -575,55 +1139,90 @@ public class BranchService {
 	}
 
 	private void doContentRollback(String path, String promotionSourceBranch, long timestamp, Collection<Class<? extends DomainEntity<?>>> domainTypes) {
-		logger.info("Deleting documents on {} started at {}.", path, timestamp);
+		Set<String> branchPaths = new HashSet<>();
+		branchPaths.add(path);
+		if (promotionSourceBranch != null) {
+			branchPaths.add(promotionSourceBranch);
+		}
+		logger.info("Deleting documents on {} started at {} and clearing end time for documents on {} ended at {}.", path, timestamp, branchPaths, timestamp);
+		// Entity classes are independent so they are rolled back concurrently when the executor allows
+		executor.invokeAll(domainTypes.stream().map(type -> (Callable<Void>) () -> {
+			if (rollbackUpdateByQuerySlices > 0) {
+				doContentRollbackByQuery(path, branchPaths, timestamp, type);
+			} else {
+				doContentRollback(path, branchPaths, timestamp, type);
+			}
+			return null;
+		}).toList());
+	}
+
+	private void doContentRollback(String path, Set<String> branchPaths, long timestamp, Class<? extends DomainEntity<?>> type) {
 		Query query = new NativeQueryBuilder()
 				.withQuery(bool(b -> b
 				.must(termQuery(Entity.Fields.PATH, path))
 				.must(termQuery(Entity.Fields.START, timestamp)))).build();
-		DeleteQuery deleteQuery = DeleteQuery.builder(query).build();
-		for (Class<? extends DomainEntity<?>> domainEntityClass : domainTypes) {
-			elasticsearchOperations.delete(deleteQuery, domainEntityClass, elasticsearchOperations.getIndexCoordinatesFor(domainEntityClass));
-			elasticsearchOperations.indexOps(domainEntityClass).refresh();
+		elasticsearchOperations.delete(DeleteQuery.builder(query).build(), type, elasticsearchOperations.getIndexCoordinatesFor(type));
+		elasticsearchOperations.indexOps(type).refresh();
+
+		// Find ended documents
+		Set<String> endedDocumentIds = new HashSet<>();
+		NativeQuery endedDocumentQuery = new NativeQueryBuilder()
+				.withQuery(bool(b -> b
+						.must(termQuery(Entity.Fields.END, timestamp))
+						.must(termsQuery(Entity.Fields.PATH, branchPaths))))
+				.withSourceFilter(new FetchSourceFilter(true, new String[]{"internalId"}, null))
+				.withPageable(LARGE_PAGE).build();
+		try (final SearchHitsIterator<? extends DomainEntity<?>> endedDocs = elasticsearchOperations.searchForStream(endedDocumentQuery, type)) {
+			endedDocs.forEachRemaining(d -> endedDocumentIds.add(d.getContent().getInternalId()));
 		}
 
-		Set<String> branchPaths = new HashSet<>();
-		branchPaths.add(path);
-		if (promotionSourceBranch != null) {
-			branchPaths.add(promotionSourceBranch);
+		// Clear end dates
+		List<UpdateQuery> updateQueries = new ArrayList<>();
+		for (String internalId : endedDocumentIds) {
+			UpdateQuery updateQuery = UpdateQuery.builder(internalId)
+					.withScript("ctx._source.remove('end')")
+					.withScriptType(INLINE)
+					.withLang("painless")
+					.build();
+			updateQueries.add(updateQuery);
 		}
-		logger.info("Clearing end time for documents on {} ended at {}.", branchPaths, timestamp);
-		for (Class<? extends DomainEntity<?>> type : domainTypes) {
-			// Find ended documents
-			Set<String> endedDocumentIds = new HashSet<>();
-			NativeQuery endedDocumentQuery = new NativeQueryBuilder()
-					.withQuery(bool(b -> b
-							.must(termQuery(Entity.Fields.END, timestamp))
-							.must(termsQuery(Entity.Fields.PATH, branchPaths))))
-					.withSourceFilter(new FetchSourceFilter(true, new String[]{"internalId"}, null))
-					.withPageable(LARGE_PAGE).build();
-			try (final SearchHitsIterator<? extends DomainEntity<?>> endedDocs = elasticsearchOperations.searchForStream(endedDocumentQuery, type)) {
-				endedDocs.forEachRemaining(d -> endedDocumentIds.add(d.getContent().getInternalId()));
+		Iterators.partition(updateQueries.iterator(), 1_000).forEachRemaining(updateQueryBatch -> {
+			if (!updateQueryBatch.isEmpty()) {
+				elasticsearchOperations.bulkUpdate(updateQueryBatch, elasticsearchOperations.getIndexCoordinatesFor(type));
 			}
+		});
+		elasticsearchOperations.indexOps(type).refresh();
+		if (!endedDocumentIds.isEmpty()) {
+			logger.info("{} ended documents restored for type {}.", endedDocumentIds.size(), type.getSimpleName());
+		}
+	}
 
-			// Clear end dates
-			List<UpdateQuery> updateQueries = new ArrayList<>();
-			for (String internalId : endedDocumentIds) {
-				UpdateQuery updateQuery = UpdateQuery.builder(internalId)
-						.withScript("ctx._source.remove('end')")
-						.withScriptType(INLINE)
-						.withLang("painless")
-						.build();
-				updateQueries.add(updateQuery);
-			}
-			Iterators.partition(updateQueries.iterator(), 1_000).forEachRemaining(updateQueryBatch -> {
-				if (!updateQueryBatch.isEmpty()) {
-					elasticsearchOperations.bulkUpdate(updateQueryBatch, elasticsearchOperations.getIndexCoordinatesFor(type));
-				}
-			});
-			elasticsearchOperations.indexOps(type).refresh();
-			if (!endedDocumentIds.isEmpty()) {
-				logger.info("{} ended documents restored for type {}.", endedDocumentIds.size(), type.getSimpleName());
-			}
+	// Rolls back the entity class within Elasticsearch, with a single refresh at the end
+	private void doContentRollbackByQuery(String path, Set<String> branchPaths, long timestamp, Class<? extends DomainEntity<?>> type) {
+		final IndexCoordinates index = elasticsearchOperations.getIndexCoordinatesFor(type);
+		elasticsearchOperations.delete(DeleteQuery.builder(new NativeQueryBuilder()
+				.withQuery(bool(b -> b
+						.must(termQuery(Entity.Fields.PATH, path))
+						.must(termQuery(Entity.Fields.START, timestamp))))
+				.build()).build(), type, index);
+
+		final ByQueryResponse response = elasticsearchOperations.updateByQuery(UpdateQuery.builder(new NativeQueryBuilder()
+						.withQuery(bool(b -> b
+								.must(termQuery(Entity.Fields.END, timestamp))
+								.must(termsQuery(Entity.Fields.PATH, branchPaths))))
+						.build())
+				.withScript("ctx._source.remove('end')")
+				.withScriptType(INLINE)
+				.withLang("painless")
+				.withSlices(rollbackUpdateByQuerySlices)
+				.build(), index);
+		if (!response.getFailures().isEmpty()) {
+			throw new IllegalStateException(String.format("Failed to restore ended %s documents on %s: %s", type.getSimpleName(), branchPaths,
+					response.getFailures().get(0).getCause()));
+		}
+		elasticsearchOperations.indexOps(index).refresh();
+		if (response.getUpdated() > 0) {
+			logger.info("{} ended documents restored for type {}.", response.getUpdated(), type.getSimpleName());
 		}
 	}
 
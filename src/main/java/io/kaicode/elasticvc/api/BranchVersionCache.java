@@ -0,0 +1,126 @@
+package io.kaicode.elasticvc.api;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.kaicode.elasticvc.domain.Branch;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded in-process cache of branch versions, keyed by path for the latest version and by (path, timepoint) for historic lookups.
+ * Entries are invalidated by BranchService whenever a version of the branch is saved or deleted.
+ * The cached instances are never given out, callers always receive a copy they are free to modify.
+ */
+@Service
+public class BranchVersionCache {
+
+	private final Cache<String, Branch> latestVersions;
+
+	private final Cache<TimepointKey, TimepointEntry> timepointVersions;
+
+	// Incremented for a path when it is invalidated, timepoint entries recorded under an older value are stale.
+	// Comparing stamps on read keeps invalidation constant time rather than scanning every timepoint entry.
+	private final Map<String, Long> pathGenerations = new ConcurrentHashMap<>();
+
+	// Incremented on every invalidation so that a read which started before a save can not populate the cache with a stale version.
+	private final AtomicLong generation = new AtomicLong();
+
+	public BranchVersionCache(@Value("${elasticvc.branch.cache.max-size:10000}") int maxSize,
+			@Value("${elasticvc.branch.cache.expire-after-write-seconds:30}") int expireAfterWriteSeconds) {
+
+		latestVersions = newCache(maxSize, expireAfterWriteSeconds);
+		timepointVersions = newCache(maxSize, expireAfterWriteSeconds);
+	}
+
+	private static <K, V> Cache<K, V> newCache(int maxSize, int expireAfterWriteSeconds) {
+		CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder().maximumSize(Math.max(maxSize, 0));
+		if (expireAfterWriteSeconds > 0) {
+			builder.expireAfterWrite(expireAfterWriteSeconds, TimeUnit.SECONDS);
+		}
+		return builder.build();
+	}
+
+	/**
+	 * @return the current generation, to be captured before reading from Elasticsearch and passed back when populating the cache.
+	 */
+	long getGeneration() {
+		return generation.get();
+	}
+
+	Branch getLatest(String path) {
+		return copyOrNull(latestVersions.getIfPresent(path));
+	}
+
+	synchronized void putLatest(Branch branch, long readGeneration) {
+		if (readGeneration == generation.get()) {
+			latestVersions.put(branch.getPath(), copy(branch));
+		}
+	}
+
+	Branch getAtTimepoint(String path, Date timepoint) {
+		final TimepointKey key = new TimepointKey(path, timepoint.getTime());
+		final TimepointEntry entry = timepointVersions.getIfPresent(key);
+		if (entry == null) {
+			return null;
+		}
+		if (entry.pathGeneration() != getPathGeneration(path)) {
+			timepointVersions.invalidate(key);
+			return null;
+		}
+		return copy(entry.branch());
+	}
+
+	synchronized void putAtTimepoint(Date timepoint, Branch branch, long readGeneration) {
+		if (readGeneration == generation.get()) {
+			timepointVersions.put(new TimepointKey(branch.getPath(), timepoint.getTime()), new TimepointEntry(copy(branch), getPathGeneration(branch.getPath())));
+		}
+	}
+
+	synchronized void invalidate(String path) {
+		generation.incrementAndGet();
+		latestVersions.invalidate(path);
+		pathGenerations.merge(path, 1L, Long::sum);
+	}
+
+	synchronized void invalidateAll() {
+		generation.incrementAndGet();
+		latestVersions.invalidateAll();
+		timepointVersions.invalidateAll();
+	}
+
+	private long getPathGeneration(String path) {
+		return pathGenerations.getOrDefault(path, 0L);
+	}
+
+	private Branch copyOrNull(Branch branch) {
+		return branch != null ? copy(branch) : null;
+	}
+
+	// Public metadata and state are not copied, these are derived again by the caller
+	private static Branch copy(Branch branch) {
+		Branch copy = new Branch(branch.getPath());
+		copy.setInternalId(branch.getInternalId());
+		copy.setStart(branch.getStart());
+		copy.setEnd(branch.getEnd());
+		copy.setBase(branch.getBase());
+		copy.setHead(branch.getHead());
+		copy.setCreation(branch.getCreation());
+		copy.setLastPromotion(branch.getLastPromotion());
+		copy.setLocked(branch.isLocked());
+		copy.setContainsContent(branch.isContainsContent());
+		copy.setStoredVersionsReplaced(branch);
+		copy.setMetadataInternal(branch.getMetadataInternal() != null ? new HashMap<>(branch.getMetadataInternal()) : null);
+		return copy;
+	}
+
+	private record TimepointKey(String path, long timepoint) {}
+
+	private record TimepointEntry(Branch branch, long pathGeneration) {}
+}
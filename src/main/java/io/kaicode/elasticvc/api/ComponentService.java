@@ -1,5 +1,7 @@
 package io.kaicode.elasticvc.api;
 
+import com.google.common.base.Strings;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import io.kaicode.elasticvc.domain.Branch;
@@ -11,17 +13,22 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.domain.PageRequest;
+import org.springframework.data.elasticsearch.client.elc.ElasticsearchTemplate;
 import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
 import org.springframework.data.elasticsearch.core.IndexOperations;
+import org.springframework.data.elasticsearch.core.document.Document;
+import org.springframework.data.elasticsearch.core.index.Settings;
 import org.springframework.data.elasticsearch.core.mapping.IndexCoordinates;
 import org.springframework.data.elasticsearch.repository.ElasticsearchRepository;
 import org.springframework.stereotype.Service;
 
-import java.util.Collection;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
+import javax.annotation.Nullable;
+import java.io.StringReader;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @Service
 public class ComponentService {
@@ -29,40 +36,179 @@ public class ComponentService {
 	@Autowired
 	private VersionControlHelper versionControlHelper;
 
+	@Autowired
+	private ElasticVCMetrics metrics;
+
+	@Autowired
+	private ElasticVCExecutor executor;
+
 	@Value("${elasticvc.save.batch-size:10000}")
 	private int saveBatchSize;
 
+	@Value("${elasticvc.save.pipeline.max-in-flight-batches:0}")
+	private int maxInFlightBatches;
+
 	public static final PageRequest LARGE_PAGE = PageRequest.of(0, 10_000);
 	public static final int CLAUSE_LIMIT = 65_000;
 
 	private static final Logger logger = LoggerFactory.getLogger(ComponentService.class);
 
 
+	public static final String INDEX_TEMPLATE_NAME = "elasticvc";
+
+	public static final long DEFAULT_INDEX_TEMPLATE_PRIORITY = 0;
+
+	private static final String BRANCH_INDEX_SUFFIX = "branch";
+
+	/**
+	 * The index template named {@value #INDEX_TEMPLATE_NAME} installed before the indices are created.
+	 * @param indexPrefix the prefix of the index names, see IndexNameProvider. The template matches every index starting with the prefix,
+	 *                    or only the indices being created when the prefix is null or empty.
+	 * @param priority the priority of the template. Elasticsearch rejects a template which matches the same indices as another template of the same priority,
+	 *                 and the settings of the template with the highest priority are used.
+	 */
+	public record IndexTemplate(@Nullable String indexPrefix, long priority) {}
+
 	public static void initialiseIndexAndMappingForPersistentClasses(boolean deleteExisting, ElasticsearchOperations elasticsearchOperations, Map<String, Object> settings, Class<?>... persistentClass) {
+		initialiseIndexAndMappingForPersistentClasses(deleteExisting, elasticsearchOperations, settings, false, null, persistentClass);
+	}
+
+	/**
+	 * @param indexTemplate install an index template with the default priority, matching the prefix of the branch index name.
+	 * @see #initialiseIndexAndMappingForPersistentClasses(boolean, ElasticsearchOperations, Map, IndexTemplate, ElasticVCExecutor, Class[])
+	 */
+	public static void initialiseIndexAndMappingForPersistentClasses(boolean deleteExisting, ElasticsearchOperations elasticsearchOperations, Map<String, Object> settings,
+			boolean indexTemplate, @Nullable ElasticVCExecutor executor, Class<?>... persistentClass) {
+
+		IndexTemplate template = indexTemplate ? new IndexTemplate(getIndexPrefix(elasticsearchOperations), DEFAULT_INDEX_TEMPLATE_PRIORITY) : null;
+		initialiseIndexAndMappingForPersistentClasses(deleteExisting, elasticsearchOperations, settings, template, executor, persistentClass);
+	}
+
+	/**
+	 * Creates any missing indices, with their mapping, for the persistent classes and the Branch class.
+	 * The mapping of each class is put on its index when the index already exists, so that new fields are mapped before any document is written.
+	 * When none of the indices need deleting a single request checks that they all exist, if so only the mappings are put.
+	 * @param settings index settings used instead of the settings of each class, may be null.
+	 * @param indexTemplate install an index template named {@value #INDEX_TEMPLATE_NAME} holding the settings and the field mappings which are the same in every class,
+	 *                      in one request. Each index is then created with only the field mappings which are not in the template. May be null for no template.
+	 * @param executor deletes, checks and creates the indices concurrently when it allows concurrency, may be null to work through the indices in sequence.
+	 */
+	public static void initialiseIndexAndMappingForPersistentClasses(boolean deleteExisting, ElasticsearchOperations elasticsearchOperations, Map<String, Object> settings,
+			@Nullable IndexTemplate indexTemplate, @Nullable ElasticVCExecutor executor, Class<?>... persistentClass) {
+
 		Set<Class<?>> classes = Sets.newHashSet(persistentClass);
 		classes.add(Branch.class);
+		Map<Class<?>, IndexCoordinates> indices = new HashMap<>();
+		for (Class<?> aClass : classes) {
+			indices.put(aClass, elasticsearchOperations.getIndexCoordinatesFor(aClass));
+		}
+		String[] indexNames = indices.values().stream().map(IndexCoordinates::getIndexName).distinct().sorted().toArray(String[]::new);
+		if (!deleteExisting && elasticsearchOperations.indexOps(IndexCoordinates.of(indexNames)).exists()) {
+			logger.info("All {} indices exist, updating mappings", indexNames.length);
+			forEachIndex(executor, indices, (aClass, index) -> putMapping(elasticsearchOperations.indexOps(index), aClass));
+			return;
+		}
+
 		logger.info("Initialising {} indices", classes.size());
 		if (deleteExisting) {
 			logger.info("Deleting indices");
-			for (Class<?> aClass : classes) {
-				IndexCoordinates index = elasticsearchOperations.getIndexCoordinatesFor(aClass);
+			forEachIndex(executor, indices, (aClass, index) -> {
 				logger.info("Deleting index {}", index.getIndexName());
 				elasticsearchOperations.indexOps(index).delete();
-			}
+			});
 		}
-		for (Class<?> aClass : classes) {
-			IndexCoordinates index = elasticsearchOperations.getIndexCoordinatesFor(aClass);
+		Settings sharedSettings = settings == null || settings.isEmpty() ? null : new Settings(settings);
+		Document sharedMapping = Document.create();
+		if (indexTemplate != null) {
+			sharedMapping = getSharedMapping(classes.stream().map(aClass -> elasticsearchOperations.indexOps(aClass).createMapping(aClass)).toList());
+			String[] indexPatterns = Strings.isNullOrEmpty(indexTemplate.indexPrefix()) ? indexNames : new String[]{indexTemplate.indexPrefix() + "*"};
+			logger.info("Putting index template {} for indices {} with priority {}", INDEX_TEMPLATE_NAME, Arrays.toString(indexPatterns), indexTemplate.priority());
+			putIndexTemplate(elasticsearchOperations, indexPatterns, indexTemplate.priority(), sharedSettings != null ? sharedSettings : new Settings(), sharedMapping);
+		}
+		Document templateMapping = sharedMapping;
+		boolean templateSettings = indexTemplate != null;
+		forEachIndex(executor, indices, (aClass, index) -> {
 			IndexOperations indexOperations = elasticsearchOperations.indexOps(index);
 			if (!indexOperations.exists()) {
 				logger.info("Creating index {}", index.getIndexName());
-				if (settings == null || settings.isEmpty()) {
-					indexOperations.create(indexOperations.createSettings(aClass));
-				} else {
-					indexOperations.create(settings);
-				}
-				indexOperations.putMapping(indexOperations.createMapping(aClass));
+				// Settings and mapping are sent in the create request. Settings and mappings held in the index template are not repeated.
+				Settings indexSettings = sharedSettings == null ? indexOperations.createSettings(aClass) : templateSettings ? new Settings() : sharedSettings;
+				indexOperations.create(indexSettings, getOwnMapping(indexOperations.createMapping(aClass), templateMapping));
+			} else {
+				putMapping(indexOperations, aClass);
 			}
+		});
+	}
+
+	// The prefix configured in the IndexNameProvider, taken from the branch index name which the provider builds from the prefix and "branch"
+	private static String getIndexPrefix(ElasticsearchOperations elasticsearchOperations) {
+		String branchIndexName = elasticsearchOperations.getIndexCoordinatesFor(Branch.class).getIndexName();
+		return branchIndexName.endsWith(BRANCH_INDEX_SUFFIX) ? branchIndexName.substring(0, branchIndexName.length() - BRANCH_INDEX_SUFFIX.length()) : null;
+	}
+
+	// Put with the Elasticsearch client because the Spring Data request has no priority
+	private static void putIndexTemplate(ElasticsearchOperations elasticsearchOperations, String[] indexPatterns, long priority, Settings settings, Document mapping) {
+		Document template = Document.create();
+		template.put("settings", settings);
+		template.put("mappings", mapping);
+		Document body = Document.create();
+		body.put("index_patterns", List.of(indexPatterns));
+		body.put("priority", priority);
+		body.put("template", template);
+		((ElasticsearchTemplate) elasticsearchOperations).execute(client -> client.indices().putIndexTemplate(request -> request
+				.name(INDEX_TEMPLATE_NAME)
+				.withJson(new StringReader(body.toJson()))));
+	}
+
+	// New fields are added to the existing mapping, a field whose type has changed fails here rather than on the first write
+	private static void putMapping(IndexOperations indexOperations, Class<?> aClass) {
+		logger.info("Putting mapping of {}", aClass.getSimpleName());
+		indexOperations.putMapping(indexOperations.createMapping(aClass));
+	}
+
+	private static void forEachIndex(@Nullable ElasticVCExecutor executor, Map<Class<?>, IndexCoordinates> indices, BiConsumer<Class<?>, IndexCoordinates> action) {
+		if (executor == null) {
+			indices.forEach(action);
+			return;
 		}
+		executor.invokeAll(indices.entrySet().stream().map(entry -> (Callable<Void>) () -> {
+			action.accept(entry.getKey(), entry.getValue());
+			return null;
+		}).toList());
+	}
+
+	// Top level field mappings which are identical in every class
+	static Document getSharedMapping(List<Document> mappings) {
+		Map<String, Object> sharedProperties = null;
+		for (Document mapping : mappings) {
+			@SuppressWarnings("unchecked")
+			Map<String, Object> properties = (Map<String, Object>) mapping.getOrDefault("properties", Collections.emptyMap());
+			if (sharedProperties == null) {
+				sharedProperties = new HashMap<>(properties);
+			} else {
+				sharedProperties.entrySet().removeIf(entry -> !entry.getValue().equals(properties.get(entry.getKey())));
+			}
+		}
+		Document sharedMapping = Document.create();
+		if (sharedProperties != null && !sharedProperties.isEmpty()) {
+			sharedMapping.put("properties", sharedProperties);
+		}
+		return sharedMapping;
+	}
+
+	// The mapping without the top level fields held in the shared mapping
+	static Document getOwnMapping(Document mapping, Document sharedMapping) {
+		@SuppressWarnings("unchecked")
+		Map<String, Object> sharedProperties = (Map<String, Object>) sharedMapping.getOrDefault("properties", Collections.emptyMap());
+		if (sharedProperties.isEmpty()) {
+			return mapping;
+		}
+		@SuppressWarnings("unchecked")
+		Map<String, Object> properties = new HashMap<>((Map<String, Object>) mapping.getOrDefault("properties", Collections.emptyMap()));
+		properties.keySet().removeAll(sharedProperties.keySet());
+		Document ownMapping = Document.from(mapping);
+		ownMapping.put("properties", properties);
+		return ownMapping;
 	}
 
 	public static void initialiseIndexAndMappingForPersistentClasses(boolean deleteExisting, ElasticsearchOperations elasticsearchOperations, Class<?>... persistentClass) {
@@ -75,26 +221,204 @@ public class ComponentService {
 	  @return The saved components with updated metadata not including those which were deleted.
 	 */
 	protected <C extends DomainEntity<?>> Iterable<C> doSaveBatchComponents(Collection<C> components, Commit commit, String idField, ElasticsearchRepository<C, String> repository) {
-		final Class<?>[] classes = TypeResolver.resolveRawArguments(ElasticsearchRepository.class, repository.getClass());
-		Class<C> componentClass = (Class<C>) classes[0];
+		Class<C> componentClass = getComponentClass(repository);
+		return metrics.time("elasticvc.save.batch", ElasticVCMetrics.commitTags(commit, componentClass),
+				() -> doSaveBatchComponents(components, commit, idField, componentClass, repository));
+	}
+
+	private <C extends DomainEntity<?>> Iterable<C> doSaveBatchComponents(Collection<C> components, Commit commit, String idField, Class<C> componentClass, ElasticsearchRepository<C, String> repository) {
 		commit.addDomainEntityClass(componentClass);
 		final List<C> changedOrDeletedComponents = components.stream().filter(component -> component.isChanged() || component.isDeleted()).collect(Collectors.toList());
 		final Set<String> deletedComponentIds = changedOrDeletedComponents.stream().filter(DomainEntity::isDeleted).map(DomainEntity::getId).collect(Collectors.toSet());
 		commit.addVersionsDeleted(deletedComponentIds);
 		if (!changedOrDeletedComponents.isEmpty()) {
 			List<List<C>> batches = Lists.partition(changedOrDeletedComponents, saveBatchSize);
+			try (BatchWriter<C> batchWriter = new BatchWriter<>(commit, idField, componentClass, repository, batches.size() > 1)) {
+				batchWriter.writeAll(batches);
+				batchWriter.finish();
+			}
+		}
+		return components.stream().filter(c -> !c.isDeleted()).collect(Collectors.toSet());
+	}
+
+	/*
+	  Saves components within commit as they are read from the stream, in batches of the configured save batch size.
+	  Only the current batch and any batches still being written are held in memory. The stream is closed once read.
+	  @return Counts of the components saved, deleted and skipped because they were not changed.
+	 */
+	protected <C extends DomainEntity<?>> SaveSummary doSaveComponents(Stream<C> components, Commit commit, String idField, ElasticsearchRepository<C, String> repository) {
+		try (components) {
+			return doSaveComponents(components.iterator(), commit, idField, repository);
+		}
+	}
+
+	protected <C extends DomainEntity<?>> SaveSummary doSaveComponents(Iterator<C> components, Commit commit, String idField, ElasticsearchRepository<C, String> repository) {
+		Class<C> componentClass = getComponentClass(repository);
+		commit.addDomainEntityClass(componentClass);
+		long saved = 0;
+		long deleted = 0;
+		long unchanged = 0;
+		try (BatchWriter<C> batchWriter = new BatchWriter<>(commit, idField, componentClass, repository, true)) {
+			List<C> batch = new ArrayList<>();
+			while (components.hasNext()) {
+				C component = components.next();
+				if (component.isDeleted()) {
+					deleted++;
+				} else if (component.isChanged()) {
+					saved++;
+				} else {
+					unchanged++;
+					continue;
+				}
+				batch.add(component);
+				if (batch.size() == saveBatchSize) {
+					commit.addVersionsDeleted(batch.stream().filter(DomainEntity::isDeleted).map(DomainEntity::getId).collect(Collectors.toSet()));
+					batchWriter.write(batch);
+					batch = new ArrayList<>();
+				}
+			}
+			if (!batch.isEmpty()) {
+				commit.addVersionsDeleted(batch.stream().filter(DomainEntity::isDeleted).map(DomainEntity::getId).collect(Collectors.toSet()));
+				batchWriter.write(batch);
+			}
+			batchWriter.finish();
+		}
+		return new SaveSummary(saved, deleted, unchanged);
+	}
+
+	@SuppressWarnings("unchecked")
+	private <C extends DomainEntity<?>> Class<C> getComponentClass(ElasticsearchRepository<C, String> repository) {
+		final Class<?>[] classes = TypeResolver.resolveRawArguments(ElasticsearchRepository.class, repository.getClass());
+		return (Class<C>) classes[0];
+	}
+
+	/**
+	 * Counts of the components processed by a streaming save.
+	 * @param saved number of new or changed components saved
+	 * @param deleted number of components deleted
+	 * @param unchanged number of components skipped because they were not marked as changed or deleted
+	 */
+	public record SaveSummary(long saved, long deleted, long unchanged) {}
+
+	/*
+	  Ends old versions and saves new versions, one batch at a time.
+	  When pipelining is enabled, old versions of each batch are ended on the calling thread while the new versions of previous batches are written in the background.
+	  The background writes run on the shared executor, so pipelining only applies when the executor allows concurrency.
+	  Ending old versions never matches documents written within the same commit, so batches do not depend on each other.
+	  When all batches are known up front and pipelining is enabled, old versions of the following batches are also ended in the background, at most maxInFlightBatches ahead.
+	  The versions replaced and timings of the commit, and the versions replaced of its branch, are thread safe.
+	  At most maxInFlightBatches writes are outstanding, when the limit is reached the calling thread waits for the oldest to complete.
+	 */
+	private class BatchWriter<C extends DomainEntity<?>> implements AutoCloseable {
+
+		private final Commit commit;
+		private final String idField;
+		private final Class<C> componentClass;
+		private final ElasticsearchRepository<C, String> repository;
+		private final boolean pipelined;
+		private final Deque<Future<?>> inFlight = new ArrayDeque<>();
+		private final Deque<Future<?>> ending = new ArrayDeque<>();
+
+		BatchWriter(Commit commit, String idField, Class<C> componentClass, ElasticsearchRepository<C, String> repository, boolean allowPipelining) {
+			this.commit = commit;
+			this.idField = idField;
+			this.componentClass = componentClass;
+			this.repository = repository;
+			this.pipelined = allowPipelining && maxInFlightBatches > 0 && executor.isConcurrent();
+		}
+
+		void writeAll(List<List<C>> batches) {
+			if (!pipelined) {
+				batches.forEach(this::write);
+				return;
+			}
+			int next = 0;
 			for (List<C> batch : batches) {
-				logger.info("Saving batch of {} {}s", batch.size(), componentClass.getSimpleName());
-				final List<String> ids = batch.stream().map(DomainEntity::getId).collect(Collectors.toList());
-				versionControlHelper.endOldVersions(commit, idField, componentClass, ids, repository);
-				final List<C> changedComponents = batch.stream().filter(d -> !d.isDeleted()).collect(Collectors.toList());
-				if (!changedComponents.isEmpty()) {
-					versionControlHelper.setEntityMeta(changedComponents, commit);
-					repository.saveAll(changedComponents);
+				// Old versions of the batch and of up to maxInFlightBatches - 1 following batches are being ended
+				while (next < batches.size() && ending.size() < maxInFlightBatches) {
+					final List<C> nextBatch = batches.get(next++);
+					ending.add(executor.submit(() -> {
+						endOldVersions(nextBatch);
+						return null;
+					}));
 				}
+				await(ending.removeFirst(), "Failed to end old versions of batch.");
+				saveNewVersions(batch);
+			}
+		}
+
+		void write(List<C> batch) {
+			endOldVersions(batch);
+			saveNewVersions(batch);
+		}
+
+		private void endOldVersions(List<C> batch) {
+			final List<String> ids = batch.stream().map(DomainEntity::getId).collect(Collectors.toList());
+			versionControlHelper.endOldVersions(commit, idField, componentClass, ids, repository);
+		}
+
+		private void saveNewVersions(List<C> batch) {
+			logger.info("Saving batch of {} {}s", batch.size(), componentClass.getSimpleName());
+			final List<C> changedComponents = batch.stream().filter(d -> !d.isDeleted()).collect(Collectors.toList());
+			metrics.count("elasticvc.save.components", ElasticVCMetrics.commitTags(commit, componentClass), changedComponents.size());
+			if (changedComponents.isEmpty()) {
+				return;
+			}
+			versionControlHelper.setEntityMeta(changedComponents, commit);
+			if (pipelined) {
+				while (inFlight.size() >= maxInFlightBatches) {
+					await(inFlight.removeFirst(), "Failed to save batch.");
+				}
+				inFlight.add(executor.submit(() -> {
+					save(changedComponents);
+					return null;
+				}));
+			} else {
+				save(changedComponents);
+			}
+		}
+
+		private void save(List<C> components) {
+			final long start = System.nanoTime();
+			repository.saveAll(components);
+			commit.getTimings().recordSave(System.nanoTime() - start);
+		}
+
+		void finish() {
+			while (!inFlight.isEmpty()) {
+				await(inFlight.removeFirst(), "Failed to save batch.");
+			}
+		}
+
+		// After a failure let outstanding work finish so that writes can not land after the commit is rolled back
+		@Override
+		public void close() {
+			for (Future<?> future : Iterables.concat(ending, inFlight)) {
+				try {
+					future.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (ExecutionException e) {
+					logger.debug("Pipelined batch failed after an earlier failure.", e);
+				}
+			}
+			ending.clear();
+			inFlight.clear();
+		}
+
+		private void await(Future<?> future, String failureMessage) {
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new ElasticVCRuntimeException("Interrupted while waiting for batch.", e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof RuntimeException runtimeException) {
+					throw runtimeException;
+				}
+				throw new ElasticVCRuntimeException(failureMessage, e.getCause());
 			}
 		}
-		return components.stream().filter(c -> !c.isDeleted()).collect(Collectors.toSet());
 	}
 
 	protected String getFetchCount(int size) {
@@ -0,0 +1,177 @@
+package io.kaicode.elasticvc.api;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Runs independent blocking work, such as the work for each entity class or batch within a commit, concurrently.
+ * It also runs pipelined batch saves, the lookups of the AsyncBranchService use a pool of their own.
+ * Concurrency is opt-in, when the maximum concurrency is 0 tasks run one after another on the calling thread.
+ * Virtual threads are used when the JVM supports them (Java 21 and later), otherwise a fixed pool of daemon threads.
+ * Tasks started from within a task run on that task's thread, so nested use can not deadlock by waiting for a thread or permit held by the caller.
+ */
+@Service
+public class ElasticVCExecutor {
+
+	private final int maxConcurrency;
+
+	private final ExecutorService executorService;
+
+	// Caps the number of running tasks when virtual threads are used, a platform thread pool is already limited by its size
+	private final Semaphore permits;
+
+	private final ThreadLocal<Boolean> runningTask = ThreadLocal.withInitial(() -> false);
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	public ElasticVCExecutor(@Value("${elasticvc.executor.max-concurrency:0}") int maxConcurrency,
+			@Value("${elasticvc.executor.virtual-threads:true}") boolean virtualThreads) {
+
+		this.maxConcurrency = maxConcurrency;
+		if (maxConcurrency <= 0) {
+			executorService = null;
+			permits = null;
+			return;
+		}
+		ExecutorService virtualThreadExecutor = virtualThreads ? newVirtualThreadExecutor() : null;
+		if (virtualThreadExecutor != null) {
+			logger.info("Running up to {} concurrent tasks on virtual threads.", maxConcurrency);
+			executorService = virtualThreadExecutor;
+			permits = new Semaphore(maxConcurrency);
+		} else {
+			logger.info("Running up to {} concurrent tasks on platform threads.", maxConcurrency);
+			ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(maxConcurrency, maxConcurrency, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+					new ThreadFactoryBuilder().setNameFormat("elasticvc-worker-%d").setDaemon(true).build());
+			threadPoolExecutor.allowCoreThreadTimeOut(true);
+			executorService = threadPoolExecutor;
+			permits = null;
+		}
+	}
+
+	// Executors.newVirtualThreadPerTaskExecutor is looked up at runtime so that the library still builds and runs on Java 17
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Runs the tasks and waits for all of them to finish.
+	 * @return the results in the order of the tasks.
+	 * @throws RuntimeException the first failure, once all tasks have finished.
+	 */
+	public <T> List<T> invokeAll(List<? extends Callable<T>> tasks) {
+		final List<T> results = new ArrayList<>();
+		if (!canRunConcurrently() || tasks.size() < 2) {
+			for (Callable<T> task : tasks) {
+				results.add(call(task));
+			}
+			return results;
+		}
+
+		final List<Future<T>> futures = new ArrayList<>();
+		for (Callable<T> task : tasks) {
+			futures.add(executorService.submit(asTask(task)));
+		}
+		RuntimeException failure = null;
+		for (Future<T> future : futures) {
+			try {
+				results.add(future.get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				futures.forEach(f -> f.cancel(true));
+				throw new ElasticVCRuntimeException("Interrupted while waiting for tasks.", e);
+			} catch (ExecutionException e) {
+				if (failure == null) {
+					failure = e.getCause() instanceof RuntimeException runtimeException ? runtimeException : new ElasticVCRuntimeException("Task failed.", e.getCause());
+				}
+				results.add(null);
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+		return results;
+	}
+
+	/**
+	 * Starts the task without waiting for it, or runs it straight away on the calling thread when concurrency is off.
+	 * @return a future completed with the result, or with the exception thrown by the task.
+	 */
+	public <T> CompletableFuture<T> submit(Callable<T> task) {
+		final CompletableFuture<T> future = new CompletableFuture<>();
+		if (!canRunConcurrently()) {
+			try {
+				future.complete(call(task));
+			} catch (RuntimeException e) {
+				future.completeExceptionally(e);
+			}
+			return future;
+		}
+		final Callable<T> concurrentTask = asTask(task);
+		executorService.execute(() -> {
+			try {
+				future.complete(call(concurrentTask));
+			} catch (RuntimeException e) {
+				future.completeExceptionally(e);
+			}
+		});
+		return future;
+	}
+
+	private boolean canRunConcurrently() {
+		return isConcurrent() && !runningTask.get();
+	}
+
+	private <T> Callable<T> asTask(Callable<T> task) {
+		return () -> {
+			if (permits != null) {
+				permits.acquire();
+			}
+			runningTask.set(true);
+			try {
+				return task.call();
+			} finally {
+				runningTask.set(false);
+				if (permits != null) {
+					permits.release();
+				}
+			}
+		};
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		if (executorService != null) {
+			executorService.shutdown();
+		}
+	}
+
+	private static <T> T call(Callable<T> task) {
+		try {
+			return task.call();
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new ElasticVCRuntimeException("Task failed.", e);
+		}
+	}
+
+	public boolean isConcurrent() {
+		return executorService != null;
+	}
+
+	public int getMaxConcurrency() {
+		return maxConcurrency;
+	}
+}
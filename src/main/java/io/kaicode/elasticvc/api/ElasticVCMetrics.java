@@ -0,0 +1,112 @@
+package io.kaicode.elasticvc.api;
+
+import io.kaicode.elasticvc.domain.Branch;
+import io.kaicode.elasticvc.domain.Commit;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.util.ClassUtils;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Timers, counters and gauges for branch and commit operations.
+ * Meters are published to the application's MeterRegistry bean, when there is no MeterRegistry bean they are no-ops.
+ * Micrometer is an optional dependency, without it on the classpath nothing is recorded.
+ * Tags are given as alternating keys and values.
+ */
+@Service
+public class ElasticVCMetrics {
+
+	public static final String TAG_BRANCH_DEPTH = "branch.depth";
+	public static final String TAG_COMMIT_TYPE = "commit.type";
+	public static final String TAG_ENTITY_CLASS = "entity.class";
+
+	private static final boolean MICROMETER_PRESENT = ClassUtils.isPresent("io.micrometer.core.instrument.MeterRegistry", ElasticVCMetrics.class.getClassLoader());
+
+	// Null when Micrometer is not on the classpath
+	private final MicrometerMeters meters;
+
+	private final AtomicInteger lockWaiting = new AtomicInteger();
+
+	@Autowired
+	public ElasticVCMetrics(BeanFactory beanFactory) {
+		this(MICROMETER_PRESENT ? MicrometerMeters.fromBeanFactory(beanFactory) : null);
+	}
+
+	public ElasticVCMetrics(@Nullable MicrometerMeters meters) {
+		this.meters = meters;
+		if (meters != null) {
+			meters.gauge("elasticvc.commit.lock.waiting", "Commits waiting for a branch lock within this instance", lockWaiting);
+		}
+	}
+
+	<T> T time(String name, String[] tags, Supplier<T> operation) {
+		return meters != null ? meters.time(name, tags, operation) : operation.get();
+	}
+
+	void time(String name, String[] tags, Runnable operation) {
+		if (meters != null) {
+			meters.time(name, tags, operation);
+		} else {
+			operation.run();
+		}
+	}
+
+	void count(String name, String[] tags, long amount) {
+		if (meters != null) {
+			meters.count(name, tags, amount);
+		}
+	}
+
+	// Records the time waiting for the in-process branch lock and how many commits are waiting at once
+	void timeLockWait(String[] tags, Runnable lock) {
+		lockWaiting.incrementAndGet();
+		try {
+			time("elasticvc.commit.lock.wait", tags, lock);
+		} finally {
+			lockWaiting.decrementAndGet();
+		}
+	}
+
+	/*
+	  Records the number of versions replaced on a new branch version, tagged by depth rather than path so that the number of meters stays bounded.
+	  The counts are taken from the versions replaced held in memory by the version being written, which are never loaded here.
+	 */
+	void recordVersionsReplaced(Branch branch) {
+		if (meters == null) {
+			return;
+		}
+		long size = 0;
+		for (int count : branch.getVersionsReplacedCounts().values()) {
+			size += count;
+		}
+		meters.record("elasticvc.branch.versions-replaced", "Versions replaced on each new branch version", branchTags(branch.getPath()), size);
+	}
+
+	static String[] branchTags(String path) {
+		return new String[]{TAG_BRANCH_DEPTH, depth(path)};
+	}
+
+	static String[] commitTags(Commit commit) {
+		return and(branchTags(commit.getBranch().getPath()), TAG_COMMIT_TYPE, commit.getCommitType().name());
+	}
+
+	static String[] commitTags(Commit commit, Class<?> entityClass) {
+		return and(commitTags(commit), TAG_ENTITY_CLASS, entityClass.getSimpleName());
+	}
+
+	static String[] and(String[] tags, String key, String value) {
+		String[] combined = Arrays.copyOf(tags, tags.length + 2);
+		combined[tags.length] = key;
+		combined[tags.length + 1] = value;
+		return combined;
+	}
+
+	static String depth(String path) {
+		return Integer.toString(PathUtil.getDepth(path));
+	}
+}
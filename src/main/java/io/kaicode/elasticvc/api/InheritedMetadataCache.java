@@ -0,0 +1,68 @@
+package io.kaicode.elasticvc.api;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.kaicode.elasticvc.domain.Metadata;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded in-process cache of the metadata a branch inherits from its ancestors, merged from the nearest ancestor to the root,
+ * keyed by branch path and the heads of the latest ancestor versions, so that commits on an ancestor made by other instances are seen.
+ * Saving a version of any ancestor invalidates the entries of all its descendants.
+ * The cached instances are never given out, callers receive a copy they are free to modify.
+ */
+@Service
+public class InheritedMetadataCache {
+
+	private final Cache<InheritedKey, Metadata> inheritedMetadata;
+
+	// Incremented on every invalidation so that metadata merged before a save can not populate the cache.
+	private final AtomicLong generation = new AtomicLong();
+
+	public InheritedMetadataCache(@Value("${elasticvc.branch.inherited-metadata.cache.max-size:1000}") int maxSize,
+			@Value("${elasticvc.branch.cache.expire-after-write-seconds:30}") int expireAfterWriteSeconds) {
+
+		CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder().maximumSize(Math.max(maxSize, 0));
+		if (expireAfterWriteSeconds > 0) {
+			builder.expireAfterWrite(expireAfterWriteSeconds, TimeUnit.SECONDS);
+		}
+		inheritedMetadata = builder.build();
+	}
+
+	long getGeneration() {
+		return generation.get();
+	}
+
+	/**
+	 * @param ancestorHeads heads of the latest versions of the ancestors, nearest first.
+	 */
+	Metadata get(String path, List<Date> ancestorHeads) {
+		Metadata metadata = inheritedMetadata.getIfPresent(new InheritedKey(path, ancestorHeads));
+		return metadata != null ? metadata.copy() : null;
+	}
+
+	synchronized void put(String path, List<Date> ancestorHeads, Metadata metadata, long readGeneration) {
+		if (readGeneration == generation.get()) {
+			inheritedMetadata.put(new InheritedKey(path, List.copyOf(ancestorHeads)), metadata.copy());
+		}
+	}
+
+	synchronized void invalidate(String path) {
+		generation.incrementAndGet();
+		final String descendantPrefix = path + PathUtil.SEPARATOR;
+		inheritedMetadata.asMap().keySet().removeIf(key -> key.path().startsWith(descendantPrefix));
+	}
+
+	synchronized void invalidateAll() {
+		generation.incrementAndGet();
+		inheritedMetadata.invalidateAll();
+	}
+
+	private record InheritedKey(String path, List<Date> ancestorHeads) {}
+}
@@ -0,0 +1,56 @@
+package io.kaicode.elasticvc.api;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import org.springframework.beans.factory.BeanFactory;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * The meters behind ElasticVCMetrics. All use of Micrometer is kept in this class so that Micrometer is an optional dependency,
+ * this class is only loaded when Micrometer is on the classpath.
+ */
+public final class MicrometerMeters {
+
+	private final MeterRegistry meterRegistry;
+
+	public MicrometerMeters(@Nullable MeterRegistry meterRegistry) {
+		// A composite registry with no registries added only creates no-op meters
+		this.meterRegistry = meterRegistry != null ? meterRegistry : new CompositeMeterRegistry();
+	}
+
+	static MicrometerMeters fromBeanFactory(BeanFactory beanFactory) {
+		return new MicrometerMeters(beanFactory.getBeanProvider(MeterRegistry.class).getIfAvailable());
+	}
+
+	void gauge(String name, String description, AtomicInteger value) {
+		Gauge.builder(name, value, AtomicInteger::get).description(description).register(meterRegistry);
+	}
+
+	<T> T time(String name, String[] tags, Supplier<T> operation) {
+		return Timer.builder(name).tags(Tags.of(tags)).register(meterRegistry).record(operation);
+	}
+
+	void time(String name, String[] tags, Runnable operation) {
+		Timer.builder(name).tags(Tags.of(tags)).register(meterRegistry).record(operation);
+	}
+
+	void count(String name, String[] tags, long amount) {
+		Counter.builder(name).tags(Tags.of(tags)).register(meterRegistry).increment(amount);
+	}
+
+	void record(String name, String description, String[] tags, long amount) {
+		DistributionSummary.builder(name).description(description).tags(Tags.of(tags)).register(meterRegistry).record(amount);
+	}
+
+	public MeterRegistry getMeterRegistry() {
+		return meterRegistry;
+	}
+}
@@ -3,8 +3,10 @@ package io.kaicode.elasticvc.api;
 import co.elastic.clients.elasticsearch._types.query_dsl.BoolQuery;
 import co.elastic.clients.elasticsearch._types.query_dsl.Query;
 import io.kaicode.elasticvc.domain.DomainEntity;
+import io.kaicode.elasticvc.domain.InternalIdSet;
 
 import java.util.*;
+import java.util.stream.Collectors;
 
 import static io.kaicode.elasticvc.helper.QueryHelper.termQuery;
 import static io.kaicode.elasticvc.helper.QueryHelper.termsQuery;
@@ -25,8 +27,19 @@ public class MultiBranchCriteria extends BranchCriteria {
 		this.branchCriteria = branchCriteria;
 	}
 
+	protected MultiBranchCriteria(MultiBranchCriteria other) {
+		super(other);
+		this.branchCriteria = other.branchCriteria.stream().map(BranchCriteria::copy).collect(Collectors.toCollection(ArrayList::new));
+	}
+
 	public void add(BranchCriteria branchCriteria) {
 		this.branchCriteria.add(branchCriteria);
+		clearEntityBranchCriteria();
+	}
+
+	@Override
+	public MultiBranchCriteria copy() {
+		return new MultiBranchCriteria(this);
 	}
 
 	@Override
@@ -35,7 +48,7 @@ public class MultiBranchCriteria extends BranchCriteria {
 	}
 
 	@Override
-	protected Query getEntityBranchCriteria(Class<? extends DomainEntity<?>> entityClass, boolean applyVersionsReplaced) {
+	protected Query buildEntityBranchCriteria(Class<? extends DomainEntity<?>> entityClass, boolean applyVersionsReplaced) {
 		BoolQuery.Builder boolQueryBuilder = new BoolQuery.Builder();
 		
 		if (branchCriteria.isEmpty()) {
@@ -55,18 +68,28 @@ public class MultiBranchCriteria extends BranchCriteria {
 		if (!aggregatedVersionsReplaced.isEmpty()) {
 			boolQueryBuilder.mustNot(termsQuery("_id", aggregatedVersionsReplaced));
 		}
+		if (applyVersionsReplaced) {
+			for (BranchCriteria criterion : branchCriteria) {
+				if (criterion.isVersionsReplacedLookup()) {
+					criterion.getVersionsReplacedClauses(entityClass).forEach(boolQueryBuilder::mustNot);
+				}
+			}
+		}
 
 		return boolQueryBuilder.build()._toQuery();
 	}
 
 	private Set<String> aggregateVersionsReplaced(Class<? extends DomainEntity<?>> entityClass) {
-		Set<String> aggregated = new HashSet<>();
+		Set<String> aggregated = InternalIdSet.empty();
 		for (BranchCriteria criterion : branchCriteria) {
-			Map<String, Set<String>> allVersionsReplaced = criterion.getAllEntityVersionsReplaced();
+			if (criterion.isVersionsReplacedLookup()) {
+				continue;
+			}
+			Map<String, Set<String>> allVersionsReplaced = criterion.getSharedEntityVersionsReplaced();
 			if (allVersionsReplaced != null) {
 				Set<String> versionsReplaced = allVersionsReplaced.get(entityClass.getSimpleName());
 				if (versionsReplaced != null) {
-					aggregated.addAll(versionsReplaced);
+					aggregated = InternalIdSet.union(aggregated, versionsReplaced);
 				}
 			}
 		}
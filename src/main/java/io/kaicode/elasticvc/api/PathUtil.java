@@ -12,6 +12,17 @@ public class PathUtil {
 		return null;
 	}
 
+	/**
+	 * @return the number of elements in the path, MAIN has a depth of 1.
+	 */
+	public static int getDepth(String path) {
+		int depth = 1;
+		for (int i = path.indexOf(SEPARATOR); i != -1; i = path.indexOf(SEPARATOR, i + 1)) {
+			depth++;
+		}
+		return depth;
+	}
+
 	public static boolean isRoot(String path) {
 		return !path.contains(SEPARATOR);
 	}
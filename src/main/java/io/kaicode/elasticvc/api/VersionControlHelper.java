@@ -7,26 +7,33 @@ import io.kaicode.elasticvc.domain.Branch;
 import io.kaicode.elasticvc.domain.Commit;
 import io.kaicode.elasticvc.domain.DomainEntity;
 import io.kaicode.elasticvc.domain.Entity;
+import io.kaicode.elasticvc.domain.InternalIdSet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.elasticsearch.client.elc.NativeQuery;
 import org.springframework.data.elasticsearch.client.elc.NativeQueryBuilder;
 import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.RefreshPolicy;
 import org.springframework.data.elasticsearch.core.SearchHitsIterator;
+import org.springframework.data.elasticsearch.core.query.ByQueryResponse;
 import org.springframework.data.elasticsearch.core.query.FetchSourceFilter;
+import org.springframework.data.elasticsearch.core.query.UpdateQuery;
 import org.springframework.data.elasticsearch.repository.ElasticsearchRepository;
 import org.springframework.stereotype.Service;
 import org.springframework.util.Assert;
 
 import javax.annotation.Nullable;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.stream.Collectors;
 
 import static co.elastic.clients.elasticsearch._types.query_dsl.QueryBuilders.*;
 import static io.kaicode.elasticvc.api.VersionControlHelper.ContentSelection.CHANGES_AND_DELETIONS_IN_THIS_COMMIT_ONLY;
 import static io.kaicode.elasticvc.helper.QueryHelper.*;
+import static org.springframework.data.elasticsearch.core.query.ScriptType.INLINE;
 
 @Service
 public class VersionControlHelper {
@@ -43,6 +50,28 @@ public class VersionControlHelper {
 	@Autowired
 	private ElasticsearchOperations elasticsearchOperations;
 
+	@Autowired
+	private BranchCriteriaCache branchCriteriaCache;
+
+	@Autowired
+	private ElasticVCMetrics metrics;
+
+	@Autowired
+	private VersionsReplacedLoader versionsReplacedLoader;
+
+	@Autowired
+	private ElasticVCExecutor executor;
+
+	@Value("${elasticvc.save.end-versions-by-query:false}")
+	private boolean endVersionsByQuery;
+
+	@Value("${elasticvc.branch-criteria.versions-replaced-terms-lookup:false}")
+	private boolean versionsReplacedTermsLookup;
+
+	// Should match the index.max_terms_count setting of the entity indices
+	@Value("${elasticvc.branch-criteria.max-terms-count:65536}")
+	private int maxTermsCount;
+
 	private final Logger logger = LoggerFactory.getLogger(getClass());
 
 	public BranchCriteria getBranchCriteria(String path) {
@@ -50,13 +79,37 @@ public class VersionControlHelper {
 	}
 
 	public BranchCriteria getBranchCriteria(Branch branch) {
-		return getBranchCriteria(branch, branch.getHead(), branch.getVersionsReplaced(), ContentSelection.STANDARD_SELECTION, null);
+		return metrics.time("elasticvc.branch-criteria.get", ElasticVCMetrics.branchTags(branch.getPath()), () -> doGetBranchCriteria(branch));
+	}
+
+	private BranchCriteria doGetBranchCriteria(Branch branch) {
+		// Standard selection criteria is fully determined by the branch version, the ancestors it is based on and their metadata.
+		// The latest ancestor heads and metadata are read every time so that changes made by other instances are seen.
+		final List<Branch> latestVersions = branchService.findLatestHeadsOfBranchAndAncestors(branch.getPath());
+		BranchCriteria branchCriteria = branchCriteriaCache.get(branch, latestVersions);
+		if (branchCriteria == null) {
+			final long cacheGeneration = branchCriteriaCache.getGeneration();
+			branchCriteria = getBranchCriteria(branch, branch.getHead(), branch.getSharedVersionsReplaced(), ContentSelection.STANDARD_SELECTION, null);
+			branchCriteriaCache.put(branch, latestVersions, branchCriteria, getDependencyPaths(branchCriteria), cacheGeneration);
+		}
+		return branchCriteria;
+	}
+
+	private Set<String> getDependencyPaths(BranchCriteria branchCriteria) {
+		List<BranchCriteria> allCriteria = branchCriteria instanceof MultiBranchCriteria multiBranchCriteria ?
+				multiBranchCriteria.getBranchCriteria() : List.of(branchCriteria);
+		Set<String> paths = new HashSet<>();
+		for (BranchCriteria criteria : allCriteria) {
+			paths.add(criteria.getBranchPath());
+			paths.addAll(getParentPaths(criteria.getBranchPath()));
+		}
+		return paths;
 	}
 
 	@SuppressWarnings("unused")
 	public BranchCriteria getBranchCriteriaAtBranchCreationTimepoint(String path) {
 		Branch branch = branchService.findFirstVersionOrThrow(path);
-		return getBranchCriteria(branch, branch.getHead(), branch.getVersionsReplaced(), ContentSelection.STANDARD_SELECTION, null);
+		return getBranchCriteria(branch);
 	}
 
 	@SuppressWarnings("unused")
@@ -66,23 +119,23 @@ public class VersionControlHelper {
 		}
 		final Branch branch = getBranchOrThrow(path);
 		Branch parentBranch = getBranchOrThrow(PathUtil.getParentPath(path));
-		return getBranchCriteria(parentBranch, branch.getBase(), parentBranch.getVersionsReplaced(), ContentSelection.STANDARD_SELECTION, null);
+		return getBranchCriteria(parentBranch, branch.getBase(), parentBranch.getSharedVersionsReplaced(), ContentSelection.STANDARD_SELECTION, null);
 	}
 
 	@SuppressWarnings("unused")
 	public BranchCriteria getBranchCriteriaBeforeOpenCommit(Commit commit) {
 		Branch branch = commit.getBranch();
-		return getBranchCriteria(branch, branch.getHead(), branch.getVersionsReplaced(), ContentSelection.STANDARD_SELECTION_BEFORE_THIS_COMMIT, commit);
+		return getBranchCriteria(branch, branch.getHead(), branch.getSharedVersionsReplaced(), ContentSelection.STANDARD_SELECTION_BEFORE_THIS_COMMIT, commit);
 	}
 
 	@SuppressWarnings("unused")
 	public BranchCriteria getBranchCriteriaAtTimepoint(String path, Date timepoint) {
 		Branch branch = branchService.findAtTimepointOrThrow(path, timepoint);
-		return getBranchCriteria(branch, branch.getHead(), branch.getVersionsReplaced(), ContentSelection.STANDARD_SELECTION, null);
+		return getBranchCriteria(branch);
 	}
 
 	public BranchCriteria getBranchCriteriaIncludingOpenCommit(Commit commit) {
-		return getBranchCriteria(commit.getBranch(), commit.getTimepoint(), commit.getEntityVersionsReplacedIncludingFromBranch(), ContentSelection.STANDARD_SELECTION, commit);
+		return getBranchCriteria(commit.getBranch(), commit.getTimepoint(), commit.getSharedEntityVersionsReplacedIncludingFromBranch(), ContentSelection.STANDARD_SELECTION, commit);
 	}
 
 	@SuppressWarnings("unused")
@@ -92,19 +145,19 @@ public class VersionControlHelper {
 	}
 	@SuppressWarnings("unused")
 	public BranchCriteria getChangesOnBranchCriteria(Branch branch) {
-		return getBranchCriteria(branch, branch.getHead(), branch.getVersionsReplaced(), ContentSelection.CHANGES_ON_THIS_BRANCH_ONLY, null);
+		return getBranchCriteria(branch, branch.getHead(), branch.getSharedVersionsReplaced(), ContentSelection.CHANGES_ON_THIS_BRANCH_ONLY, null);
 	}
 	@SuppressWarnings("unused")
 	public BranchCriteria getChangesOnBranchIncludingOpenCommit(Commit commit) {
-		return getBranchCriteria(commit.getBranch(), commit.getTimepoint(), commit.getEntityVersionsReplacedIncludingFromBranch(), ContentSelection.CHANGES_ON_THIS_BRANCH_ONLY, commit);
+		return getBranchCriteria(commit.getBranch(), commit.getTimepoint(), commit.getSharedEntityVersionsReplacedIncludingFromBranch(), ContentSelection.CHANGES_ON_THIS_BRANCH_ONLY, commit);
 	}
 	@SuppressWarnings("unused")
 	public BranchCriteria getBranchCriteriaChangesWithinOpenCommitOnly(Commit commit) {
-		return getBranchCriteria(commit.getBranch(), commit.getTimepoint(), commit.getEntityVersionsReplacedIncludingFromBranch(), ContentSelection.CHANGES_IN_THIS_COMMIT_ONLY, commit);
+		return getBranchCriteria(commit.getBranch(), commit.getTimepoint(), commit.getSharedEntityVersionsReplacedIncludingFromBranch(), ContentSelection.CHANGES_IN_THIS_COMMIT_ONLY, commit);
 	}
 	@SuppressWarnings("unused")
 	public BranchCriteria getBranchCriteriaChangesAndDeletionsWithinOpenCommitOnly(Commit commit) {
-		return getBranchCriteria(commit.getBranch(), commit.getTimepoint(), commit.getEntityVersionsReplacedIncludingFromBranch(), CHANGES_AND_DELETIONS_IN_THIS_COMMIT_ONLY, commit);
+		return getBranchCriteria(commit.getBranch(), commit.getTimepoint(), commit.getSharedEntityVersionsReplacedIncludingFromBranch(), CHANGES_AND_DELETIONS_IN_THIS_COMMIT_ONLY, commit);
 	}
 
 	@SuppressWarnings("unused")
@@ -130,8 +183,9 @@ public class VersionControlHelper {
 
 	@SuppressWarnings("unused")
 	public BoolQuery.Builder getUpdatesOnBranchOrAncestorsDuringRangeQuery(String path, Date start, Date end) {
-		List<Branch> startTimeSlice = getTimeSlice(path, start);
-		List<Branch> endTimeSlice = getTimeSlice(path, end);
+		final List<List<Branch>> timeSlices = branchService.findTimeSlices(path, List.of(start, end));
+		List<Branch> startTimeSlice = timeSlices.get(0);
+		List<Branch> endTimeSlice = timeSlices.get(1);
 
 		BoolQuery.Builder shouldsQuery = bool();
 		for (int i = 0; i < startTimeSlice.size(); i++) {
@@ -179,7 +233,7 @@ public class VersionControlHelper {
 			multiBranchCriteria.add(getBranchCriteria(branch, timepoint, versionsReplaced, contentSelection, commit, false));
 			for (String dependentPath : additionalDependencies) {
 				Branch dependentBranch = branchService.findBranchOrThrow(dependentPath);
-				BranchCriteria dependent = getBranchCriteria(dependentBranch, dependentBranch.getHead(), dependentBranch.getVersionsReplaced(), contentSelection, commit, true);
+				BranchCriteria dependent = getBranchCriteria(dependentBranch, dependentBranch.getHead(), dependentBranch.getSharedVersionsReplaced(), contentSelection, commit, true);
 				multiBranchCriteria.add(dependent);
 			}
 			return multiBranchCriteria;
@@ -194,7 +248,7 @@ public class VersionControlHelper {
 
 		final BoolQuery.Builder branchQueryBuilder = bool();
 		final BoolQuery.Builder thisBranchShouldClause = bool().must(termQuery(Entity.Fields.PATH, branch.getPath()));
-		Map<String, Set<String>> allEntityVersionsReplaced = null;
+		List<Branch> ancestorVersions = null;
 		switch (contentSelection) {
 			case STANDARD_SELECTION -> {
 				// On this branch and started and (not ended or ended later)
@@ -204,8 +258,8 @@ public class VersionControlHelper {
 						.should(range(rq -> rq.date(drq -> drq.field(Entity.Fields.END).gt(String.valueOf(timepoint.getTime())))))
 				));
 				// Or any parent branch within time constraints
-
-				allEntityVersionsReplaced = addParentCriteriaRecursively(branchQueryBuilder, branch, versionsReplaced, skipRoot);
+				ancestorVersions = new ArrayList<>();
+				addParentCriteria(branchQueryBuilder, branch, ancestorVersions, skipRoot);
 			}
 			case STANDARD_SELECTION_BEFORE_THIS_COMMIT -> {
 				// On this branch and started not ended
@@ -216,7 +270,8 @@ public class VersionControlHelper {
 								.should(termQuery(Entity.Fields.END, commit.getTimepoint().getTime())))
 				);
 				// Or any parent branch within time constraints
-				allEntityVersionsReplaced = addParentCriteriaRecursively(branchQueryBuilder, branch, versionsReplaced, skipRoot);
+				ancestorVersions = new ArrayList<>();
+				addParentCriteria(branchQueryBuilder, branch, ancestorVersions, skipRoot);
 			}
 			case CHANGES_ON_THIS_BRANCH_ONLY ->
 				// On this branch and started not ended
@@ -270,7 +325,7 @@ public class VersionControlHelper {
 						.should(range(rq -> rq.date(drq -> drq.field(Entity.Fields.START).gte(String.valueOf(startPoint.getTime())))))
 						.should(range(rq -> rq.date(drq -> drq.field(Entity.Fields.END).gte(String.valueOf(startPoint.getTime())))))));
 				// Include versions deleted on this branch, from any ancestor
-				branchQueryBuilder.should(termsQuery("_id", branch.getVersionsReplaced().values().stream().flatMap(Collection::stream).collect(Collectors.toSet())));
+				branchQueryBuilder.should(termsQuery("_id", branch.getSharedVersionsReplaced().values().stream().flatMap(Collection::stream).collect(Collectors.toSet())));
 			}
 			case UNPROMOTED_CHANGES_ON_THIS_BRANCH -> {
 				Date startPoint = branch.getLastPromotion() != null ? branch.getLastPromotion() : branch.getCreation();
@@ -282,7 +337,36 @@ public class VersionControlHelper {
 		// Nest branch criteria in a 'must' clause so its 'should' clauses are not ignored if 'must' clauses are added to the query builder.
 		branchQueryBuilder.should(thisBranchShouldClause.build()._toQuery());
 		Query must = branchQueryBuilder.build()._toQuery();
-		BranchCriteria branchCriteria =  new BranchCriteria(branch.getPath(), must, allEntityVersionsReplaced, timepoint);
+		BranchCriteria branchCriteria;
+		if (ancestorVersions == null) {
+			branchCriteria = new BranchCriteria(branch.getPath(), must, null, timepoint);
+		} else if (versionsReplacedTermsLookup && contentSelection == ContentSelection.STANDARD_SELECTION && commit == null && branch.getInternalId() != null) {
+			// Versions replaced are read from the stored branch version documents by Elasticsearch, only merged in memory if requested
+			final List<Branch> versionsReplacedSources = ancestorVersions;
+			branchCriteria = BranchCriteria.withLazyVersionsReplaced(branch.getPath(), must, () -> mergeVersionsReplaced(versionsReplaced, versionsReplacedSources), timepoint);
+			List<String> documentIds = new ArrayList<>();
+			documentIds.addAll(versionsReplacedLoader.getDocumentIds(branch));
+			ancestorVersions.forEach(ancestorVersion -> documentIds.addAll(versionsReplacedLoader.getDocumentIds(ancestorVersion)));
+			// A lookup fails if a document holds more ids than the terms limit, those classes are excluded with lists of ids instead.
+			// Every branch document holds part of the full versions replaced of its version so the full counts are an upper bound.
+			// The counts are stored on the branch documents, only versions written before that have their versions replaced loaded to count them.
+			Set<String> listedEntityClasses = new HashSet<>();
+			versionsReplaced.forEach((entityClass, ids) -> {
+				if (ids.size() > maxTermsCount) {
+					listedEntityClasses.add(entityClass);
+				}
+			});
+			loadVersionsReplaced(ancestorVersions.stream().filter(ancestorVersion -> !ancestorVersion.isVersionsReplacedCounted()).toList());
+			ancestorVersions.forEach(ancestorVersion -> ancestorVersion.getVersionsReplacedCounts().forEach((entityClass, count) -> {
+				if (count > maxTermsCount) {
+					listedEntityClasses.add(entityClass);
+				}
+			}));
+			branchCriteria.setVersionsReplacedLookup(elasticsearchOperations.getIndexCoordinatesFor(Branch.class).getIndexName(), documentIds,
+					listedEntityClasses, maxTermsCount);
+		} else {
+			branchCriteria = new BranchCriteria(branch.getPath(), must, mergeVersionsReplaced(versionsReplaced, ancestorVersions), timepoint);
+		}
 		getParentBranchesToExcludeByEntityClassName(branch.getPath()).forEach(branchCriteria::excludeEntityContentFromPaths);
 		return branchCriteria;
 	}
@@ -297,16 +381,19 @@ public class VersionControlHelper {
 		return parents;
 	}
 
-	private Map<String, Set<String>> addParentCriteriaRecursively(BoolQuery.Builder branchCriteria, Branch branch, Map<String, Set<String>> versionsReplaced, boolean skipRoot) {
+	// The version of every ancestor, each at the base of its child, is read with one search rather than one lookup per ancestor
+	private void addParentCriteria(BoolQuery.Builder branchCriteria, Branch branch, List<Branch> ancestorVersions, boolean skipRoot) {
 		String parentPath = PathUtil.getParentPath(branch.getPath());
-		if (parentPath != null) {
-			if (skipRoot && PathUtil.isRoot(parentPath)) {
-				return versionsReplaced;
+		if (parentPath == null) {
+			return;
+		}
+		Date childBase = branch.getBase();
+		for (Branch parentBranch : getTimeSlice(parentPath, childBase)) {
+			if (skipRoot && PathUtil.isRoot(parentBranch.getPath())) {
+				return;
 			}
-			final Branch parentBranch = branchService.findAtTimepointOrThrow(parentPath, branch.getBase());
-			versionsReplaced = MapUtil.addAll(versionsReplaced, new HashMap<>());
-			MapUtil.addAll(parentBranch.getVersionsReplaced(), versionsReplaced);
-			final Date base = branch.getBase();
+			ancestorVersions.add(parentBranch);
+			final Date base = childBase;
 			branchCriteria.should(bool(b -> b
 					.must(termQuery(Entity.Fields.PATH, parentBranch.getPath()))
 					.must(range(rq -> rq.date(drq -> drq.field(Entity.Fields.START).lte(String.valueOf(base.getTime())))))
@@ -314,27 +401,38 @@ public class VersionControlHelper {
 							.should(bool(sb -> sb.mustNot(existsQuery(Entity.Fields.END))))
 							.should(range(rq -> rq.date(drq -> drq.field(Entity.Fields.END).gt(String.valueOf(base.getTime())))))))
 			));
-			return addParentCriteriaRecursively(branchCriteria, parentBranch, versionsReplaced, skipRoot);
+			childBase = parentBranch.getBase();
 		}
-		return versionsReplaced;
 	}
 
-	public List<Branch> getTimeSlice(String branchPath, Date timepoint) {
-		List<Branch> branches = new ArrayList<>();
-		addBranchAndAncestors(branchPath, timepoint, branches);
-		return branches;
+	// Resolving the versions replaced of an ancestor can read its snapshot and deltas, which is independent of the other ancestors
+	private void loadVersionsReplaced(List<Branch> ancestorVersions) {
+		executor.invokeAll(ancestorVersions.stream().map(ancestorVersion -> (Callable<Map<String, Integer>>) ancestorVersion::getVersionsReplacedCounts).toList());
 	}
 
-	private void addBranchAndAncestors(String branchPath, Date timepoint, List<Branch> branches) {
-		Branch branch = branchService.findAtTimepointOrThrow(branchPath, timepoint);
-		branches.add(branch);
-		if (!PathUtil.isRoot(branchPath)) {
-			String parentPath = PathUtil.getParentPath(branchPath);
-			addBranchAndAncestors(parentPath, branch.getBase(), branches);
+	private Map<String, Set<String>> mergeVersionsReplaced(Map<String, Set<String>> versionsReplaced, List<Branch> ancestorVersions) {
+		if (ancestorVersions.isEmpty()) {
+			return versionsReplaced;
+		}
+		loadVersionsReplaced(ancestorVersions);
+		Map<String, Set<String>> allVersionsReplaced = new HashMap<>(versionsReplaced);
+		for (Branch ancestorVersion : ancestorVersions) {
+			ancestorVersion.getSharedVersionsReplaced().forEach((key, value) -> allVersionsReplaced.merge(key, value, InternalIdSet::union));
 		}
+		return allVersionsReplaced;
+	}
+
+	public List<Branch> getTimeSlice(String branchPath, Date timepoint) {
+		return branchService.findTimeSlices(branchPath, List.of(timepoint)).get(0);
 	}
 
 	<T extends DomainEntity<?>> void endOldVersions(Commit commit, String idField, Class<T> entityClass, Collection<?> ids, ElasticsearchRepository<T, String> repository) {
+		final long start = System.nanoTime();
+		metrics.time("elasticvc.versions.end", ElasticVCMetrics.commitTags(commit, entityClass), () -> doEndOldVersions(commit, idField, entityClass, ids, repository));
+		commit.getTimings().recordEndOldVersions(entityClass.getSimpleName(), System.nanoTime() - start);
+	}
+
+	private <T extends DomainEntity<?>> void doEndOldVersions(Commit commit, String idField, Class<T> entityClass, Collection<?> ids, ElasticsearchRepository<T, String> repository) {
 		// End versions of the entity on this path by setting end date
 		endOldVersionsOnThisBranch(entityClass, ids, idField, null, commit, repository);
 
@@ -355,7 +453,8 @@ public class VersionControlHelper {
 		}
 		commit.addVersionsReplaced(versionsReplaced, entityClass);
 
-		logger.debug("Replaced {} {} {}", versionsReplaced.size(), entityClass.getSimpleName(), versionsReplaced);
+		logger.debug("Replaced {} {}", versionsReplaced.size(), entityClass.getSimpleName());
+		logger.trace("Replaced {} {}", entityClass.getSimpleName(), versionsReplaced);
 	}
 
 	 public List<String> getParentBranchesExcludedEntityClassNames(Branch branch) {
@@ -400,15 +499,19 @@ public class VersionControlHelper {
 
 
 	@SuppressWarnings("unused")
-	public <T extends DomainEntity<?>> void endAllVersionsOnThisBranch(Class<T> entityClass, @Nullable Query selectionClause, Commit commit, ElasticsearchRepository<T, String> repository) {
-		endOldVersionsOnThisBranch(entityClass, null, null, selectionClause, commit, repository);
+	public <T extends DomainEntity<?>> long endAllVersionsOnThisBranch(Class<T> entityClass, @Nullable Query selectionClause, Commit commit, ElasticsearchRepository<T, String> repository) {
+		return endOldVersionsOnThisBranch(entityClass, null, null, selectionClause, commit, repository);
 	}
 
-	public <T extends DomainEntity<?>> void endOldVersionsOnThisBranch(Class<T> entityClass, Collection<?> ids, String idField, Query selectionClause,
+	/**
+	 * Ends the versions on the branch of the commit which match the ids and selection clause, by setting the end date to the commit timepoint.
+	 * @return the number of documents ended.
+	 */
+	public <T extends DomainEntity<?>> long endOldVersionsOnThisBranch(Class<T> entityClass, Collection<?> ids, String idField, Query selectionClause,
 			Commit commit, ElasticsearchRepository<T, String> repository) {
 
 		if (ids != null && ids.isEmpty()) {
-			return;
+			return 0;
 		}
 
 		BoolQuery.Builder filterBuilder = bool();
@@ -419,13 +522,19 @@ public class VersionControlHelper {
 			filterBuilder.must(selectionClause);
 		}
 
+		final Query localVersions = bool(b -> b
+				.must(termQuery(Entity.Fields.PATH, commit.getBranch().getPath()))
+				.must(range(rq -> rq.date(drq -> drq.field(Entity.Fields.START).lt(String.valueOf(commit.getTimepoint().getTime())))))
+				.mustNot(existsQuery(Entity.Fields.END)));
+		final Query filter = filterBuilder.build()._toQuery();
+
+		if (endVersionsByQuery) {
+			return endVersionsByQuery(entityClass, localVersions, filter, commit);
+		}
+
 		final NativeQuery query = new NativeQueryBuilder()
-				.withQuery(
-						bool(b -> b
-								.must(termQuery(Entity.Fields.PATH, commit.getBranch().getPath()))
-								.must(range(rq -> rq.date(drq -> drq.field(Entity.Fields.START).lt(String.valueOf(commit.getTimepoint().getTime())))))
-								.mustNot(existsQuery(Entity.Fields.END))))
-				.withFilter(filterBuilder.build()._toQuery())
+				.withQuery(localVersions)
+				.withFilter(filter)
 				.withPageable(LARGE_PAGE)
 				.build();
 
@@ -436,20 +545,45 @@ public class VersionControlHelper {
 				toSave.add(version.getContent());
 			});
 		}
+		final int ended = toSave.size();
 		if (!toSave.isEmpty()) {
 			for (List<T> partition : Lists.partition(toSave, 5_000)) {
 				repository.saveAll(partition);
 			}
-			logger.debug("Ended {} {} {}", toSave.size(), entityClass.getSimpleName(), toSave.stream().map(Entity::getInternalId).collect(Collectors.toList()));
+			logger.debug("Ended {} {}", toSave.size(), entityClass.getSimpleName());
+			if (logger.isTraceEnabled()) {
+				logger.trace("Ended {} {}", entityClass.getSimpleName(), toSave.stream().map(Entity::getInternalId).collect(Collectors.toList()));
+			}
 			toSave.clear();
 		}
+		return ended;
+	}
+
+	// Sets only the end field within Elasticsearch rather than fetching and reindexing whole documents
+	private long endVersionsByQuery(Class<? extends DomainEntity<?>> entityClass, Query localVersions, Query filter, Commit commit) {
+		final UpdateQuery updateQuery = UpdateQuery.builder(new NativeQueryBuilder()
+						.withQuery(bool(b -> b.must(localVersions).filter(filter)))
+						.build())
+				.withScript("ctx._source.end = params.end")
+				.withParams(Map.of("end", commit.getTimepoint().getTime()))
+				.withScriptType(INLINE)
+				.withLang("painless")
+				.withRefreshPolicy(RefreshPolicy.IMMEDIATE)
+				.build();
+		final ByQueryResponse response = elasticsearchOperations.updateByQuery(updateQuery, elasticsearchOperations.getIndexCoordinatesFor(entityClass));
+		if (!response.getFailures().isEmpty()) {
+			throw new IllegalStateException(String.format("Failed to end %s versions on %s: %s", entityClass.getSimpleName(), commit.getBranch().getPath(),
+					response.getFailures().get(0).getCause()));
+		}
+		logger.debug("Ended {} {} by query", response.getUpdated(), entityClass.getSimpleName());
+		return response.getUpdated();
 	}
 
 	@SuppressWarnings("unused")
 	public Map<String, Set<String>> getAllVersionsReplaced(List<Branch> timeSlice) {
 		Map<String, Set<String>> allVersionsReplaced = new HashMap<>();
 		for (Branch branch : timeSlice) {
-			Map<String, Set<String>> branchVersionsReplaced = branch.getVersionsReplaced();
+			Map<String, Set<String>> branchVersionsReplaced = branch.getSharedVersionsReplaced();
 			for (String type : branchVersionsReplaced.keySet()) {
 				allVersionsReplaced.computeIfAbsent(type, t -> new HashSet<>()).addAll(branchVersionsReplaced.get(type));
 			}
@@ -0,0 +1,137 @@
+package io.kaicode.elasticvc.api;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.kaicode.elasticvc.domain.Branch;
+import io.kaicode.elasticvc.domain.Entity;
+import io.kaicode.elasticvc.domain.InternalIdSet;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.elasticsearch.client.elc.NativeQueryBuilder;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.SearchHit;
+import org.springframework.data.elasticsearch.core.SearchHitsIterator;
+import org.springframework.data.elasticsearch.core.document.Document;
+import org.springframework.data.elasticsearch.core.event.AfterConvertCallback;
+import org.springframework.data.elasticsearch.core.mapping.IndexCoordinates;
+import org.springframework.data.elasticsearch.core.query.FetchSourceFilter;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+
+import static co.elastic.clients.elasticsearch._types.query_dsl.QueryBuilders.bool;
+import static co.elastic.clients.elasticsearch._types.query_dsl.QueryBuilders.range;
+import static io.kaicode.elasticvc.helper.QueryHelper.termQuery;
+
+/**
+ * Loads the full versions replaced of branch versions which only store the delta of their commit.
+ * The snapshot and the deltas after it are read in one query and merged, the result is cached by branch path and version start.
+ * Stored versions replaced never change once a version is written so cache entries do not need invalidating.
+ * Registered as a callback so that every branch version read from Elasticsearch can load its versions replaced when they are first used.
+ */
+@Service
+public class VersionsReplacedLoader implements AfterConvertCallback<Branch> {
+
+	@Autowired
+	private ElasticsearchOperations elasticsearchOperations;
+
+	private final Cache<VersionKey, VersionsReplaced> versionsReplaced;
+
+	public VersionsReplacedLoader(@Value("${elasticvc.branch.versions-replaced.cache.max-size:1000}") int maxSize) {
+		versionsReplaced = CacheBuilder.newBuilder().maximumSize(Math.max(maxSize, 0)).build();
+	}
+
+	@Override
+	public Branch onAfterConvert(Branch branch, Document document, IndexCoordinates indexCoordinates) {
+		if (branch.isVersionsReplacedDelta()) {
+			branch.setVersionsReplacedLoader(this::load);
+		}
+		return branch;
+	}
+
+	Map<String, Set<String>> load(Branch branch) {
+		return get(branch, false).versionsReplaced();
+	}
+
+	/**
+	 * @return ids of the branch documents which together hold the versions replaced of the branch version.
+	 */
+	List<String> getDocumentIds(Branch branch) {
+		if (!branch.isVersionsReplacedDelta()) {
+			return List.of(branch.getInternalId());
+		}
+		return get(branch, true).documentIds();
+	}
+
+	/**
+	 * Caches the versions replaced of a branch version which has just been written, so they are not loaded again.
+	 */
+	void put(Branch branch) {
+		if (branch.isVersionsReplacedDelta()) {
+			versionsReplaced.put(new VersionKey(branch.getPath(), branch.getStart().getTime()), new VersionsReplaced(branch.getSharedVersionsReplaced(), null));
+		}
+	}
+
+	public void invalidateAll() {
+		versionsReplaced.invalidateAll();
+	}
+
+	private VersionsReplaced get(Branch branch, boolean documentIdsRequired) {
+		VersionKey key = new VersionKey(branch.getPath(), branch.getStart().getTime());
+		VersionsReplaced cached = versionsReplaced.getIfPresent(key);
+		if (cached != null && documentIdsRequired && cached.documentIds() == null) {
+			VersionsReplaced loaded = doLoad(branch);
+			versionsReplaced.put(key, loaded);
+			return loaded;
+		}
+		try {
+			return versionsReplaced.get(key, () -> doLoad(branch));
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof RuntimeException runtimeException ? runtimeException : new ElasticVCRuntimeException("Failed to load versions replaced.", e.getCause());
+		}
+	}
+
+	private VersionsReplaced doLoad(Branch branch) {
+		final long snapshot = branch.getVersionsReplacedSnapshot().getTime();
+		final NativeQueryBuilder queryBuilder = new NativeQueryBuilder()
+				.withQuery(bool(b -> b
+						.must(termQuery(Branch.Fields.PATH, branch.getPath()))
+						.must(range(rq -> rq.date(drq -> drq.field(Entity.Fields.START)
+								.gte(String.valueOf(snapshot))
+								.lte(String.valueOf(branch.getStart().getTime())))))))
+				.withSort(sb -> sb.field(fb -> fb.field(Entity.Fields.START)))
+				.withSourceFilter(new FetchSourceFilter(true, new String[]{Branch.Fields.PATH, Entity.Fields.START, Branch.Fields.VERSIONS_REPLACED,
+						Branch.Fields.VERSIONS_REPLACED_SNAPSHOT, Branch.Fields.VERSIONS_REPLACED_DELTAS}, null));
+
+		Map<String, Set<String>> snapshotVersionsReplaced = null;
+		final Map<String, Set<String>> deltas = new HashMap<>();
+		final List<String> documentIds = new ArrayList<>();
+		try (SearchHitsIterator<Branch> versions = elasticsearchOperations.searchForStream(queryBuilder.build(), Branch.class)) {
+			while (versions.hasNext()) {
+				final SearchHit<Branch> hit = versions.next();
+				final Branch version = hit.getContent();
+				if (snapshotVersionsReplaced == null) {
+					if (version.getStart().getTime() != snapshot || version.isVersionsReplacedDelta()) {
+						break;
+					}
+					snapshotVersionsReplaced = version.getStoredVersionsReplaced();
+				} else {
+					version.getStoredVersionsReplaced().forEach((type, ids) -> deltas.computeIfAbsent(type, t -> new HashSet<>()).addAll(ids));
+				}
+				documentIds.add(hit.getId());
+			}
+		}
+		if (snapshotVersionsReplaced == null) {
+			throw new IllegalStateException("Versions replaced snapshot at " + snapshot + " of branch " + branch.getPath() + " not found.");
+		}
+		final Map<String, Set<String>> allVersionsReplaced = snapshotVersionsReplaced;
+		deltas.forEach((type, ids) -> allVersionsReplaced.merge(type, InternalIdSet.of(ids), InternalIdSet::union));
+		return new VersionsReplaced(allVersionsReplaced, documentIds);
+	}
+
+	// Document ids are null for versions cached when written, they are only loaded if a terms lookup needs them
+	private record VersionsReplaced(Map<String, Set<String>> versionsReplaced, List<String> documentIds) {}
+
+	private record VersionKey(String path, long start) {}
+}
@@ -1,18 +1,29 @@
 package io.kaicode.elasticvc.domain;
 
-import io.kaicode.elasticvc.api.MapUtil;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import org.springframework.data.annotation.Transient;
 import org.springframework.data.elasticsearch.annotations.Document;
 import org.springframework.data.elasticsearch.annotations.Field;
 import org.springframework.data.elasticsearch.annotations.FieldType;
 
 import java.util.*;
+import java.util.function.Function;
 
 @Document(indexName = "#{@indexNameProvider.indexName('branch')}", createIndex = false)
 public class Branch extends Entity {
 	public interface Fields {
 		String PATH = "path";
 		String END = "end";
+		String VERSIONS_REPLACED = "versionsReplaced";
+		String VERSIONS_REPLACED_SNAPSHOT = "versionsReplacedSnapshot";
+		String VERSIONS_REPLACED_DELTAS = "versionsReplacedDeltas";
+		String PARENT_PATH = "parentPath";
+		String DEPTH = "depth";
+		String ANCESTORS = "ancestors";
+		String METADATA_INTERNAL = "metadataInternal";
+		String BASE = "base";
+		String HEAD = "head";
+		String CONTAINS_CONTENT = "containsContent";
 	}
 
 	/**
@@ -20,6 +31,24 @@ public class Branch extends Entity {
 	 */
 	public static final String MAIN = "MAIN";
 
+	/**
+	 * Path of the parent branch, derived from the path and stored so that child branches can be found with a term query.
+	 */
+	@Field(type = FieldType.Keyword)
+	private String parentPath;
+
+	/**
+	 * Number of elements in the path, MAIN has a depth of 1.
+	 */
+	@Field(type = FieldType.Integer)
+	private Integer depth;
+
+	/**
+	 * Paths of all ancestor branches, starting with MAIN, so that descendants can be found with a term query.
+	 */
+	@Field(type = FieldType.Keyword)
+	private List<String> ancestors;
+
 	@Field(type = FieldType.Long)
 	private Date base;
 
@@ -39,16 +68,58 @@ public class Branch extends Entity {
 	private boolean containsContent;
 
 	/**
-	 * Map of classes and internal ids of entities visible on ancestor branches which have been replaced or deleted on this branch
+	 * Map of classes and internal ids of entities visible on ancestor branches which have been replaced or deleted on this branch.
+	 * Access is synchronized because the branch of a commit is shared by the threads ending old versions of each save batch.
+	 * When versionsReplacedSnapshot is set this only holds the ids replaced by the commit which created this version.
+	 * Values are held as immutable InternalIdSets, documents read from Elasticsearch are converted on first access.
 	 */
 	private Map<String, Collection<String>> versionsReplaced;
 
+	/**
+	 * Start of the version of this branch which holds the full versions replaced, null if this version holds them itself.
+	 * The versions replaced of this version are those of the snapshot plus those stored on every later version up to and including this one.
+	 */
+	@Field(type = FieldType.Long)
+	private Date versionsReplacedSnapshot;
+
+	/**
+	 * Number of versions since the snapshot, including this one.
+	 */
+	@Field(type = FieldType.Integer)
+	private int versionsReplacedDeltas;
+
+	/**
+	 * Number of ids of each entity class in the full versions replaced of this version, stored so that they can be read without loading the sets,
+	 * or the snapshot and deltas of a version which only stores a delta. Null for versions written before the counts were stored.
+	 */
+	@Field(type = FieldType.Object, enabled = false)
+	private Map<String, Integer> versionsReplacedCounts;
+
+	// Full versions replaced of a version which only stores a delta, loaded on first access
+	@Transient
+	private Map<String, Collection<String>> resolvedVersionsReplaced;
+
+	@Transient
+	@JsonIgnore
+	private Function<Branch, Map<String, Set<String>>> versionsReplacedLoader;
+
 	@Field(type = FieldType.Object)
 	private Map<String, String> metadataInternal;
 
 	@Transient
 	private Metadata metadata;
 
+	// Set when the branch was read without its versions replaced and metadata, which are then loaded when first used
+	@Transient
+	@JsonIgnore
+	private Function<Branch, Branch> excludedFieldsLoader;
+
+	@Transient
+	private boolean versionsReplacedExcluded;
+
+	@Transient
+	private boolean metadataExcluded;
+
 	@Transient
 	private BranchState state;
 
@@ -85,7 +156,48 @@ public class Branch extends Entity {
 		}
 	}
 
+	@Override
+	public void setPath(String path) {
+		super.setPath(path);
+		updatePathFields();
+	}
+
+	/**
+	 * Sets the parent path, depth and ancestors from the path.
+	 * Documents written before these fields existed do not have them until they are saved again.
+	 */
+	public void updatePathFields() {
+		final String path = getPath();
+		if (path == null) {
+			parentPath = null;
+			depth = null;
+			ancestors = null;
+			return;
+		}
+		ancestors = new ArrayList<>();
+		for (int i = path.indexOf('/'); i != -1; i = path.indexOf('/', i + 1)) {
+			ancestors.add(path.substring(0, i));
+		}
+		parentPath = ancestors.isEmpty() ? null : ancestors.get(ancestors.size() - 1);
+		depth = ancestors.size() + 1;
+	}
+
+	public String getParentPath() {
+		return parentPath;
+	}
+
+	public Integer getDepth() {
+		return depth;
+	}
+
+	public List<String> getAncestors() {
+		return ancestors;
+	}
+
 	public boolean isParent(Branch otherBranch) {
+		if (otherBranch.parentPath != null) {
+			return otherBranch.parentPath.equals(getPath());
+		}
 		final String childPath = otherBranch.getPath();
 		final int endIndex = childPath.lastIndexOf("/");
 		return endIndex > 0 && getPath().equals(childPath.substring(0, endIndex));
@@ -93,24 +205,71 @@ public class Branch extends Entity {
 
 	public void addVersionsReplaced(Map<String, Set<String>> versionsReplacedToAdd) {
 		for (String key : versionsReplacedToAdd.keySet()) {
-			versionsReplaced.computeIfAbsent(key, (k) -> new HashSet<>()).addAll(versionsReplacedToAdd.get(key));
+			addVersionsReplaced(key, versionsReplacedToAdd.get(key));
 		}
 	}
 
 	public void addVersionsReplaced(DomainEntity<?> entity, Set<String> internalIds) {
 		if (notMAIN()) {
-			versionsReplaced.computeIfAbsent(entity.getClass().getSimpleName(), (clazz) -> new HashSet<>()).addAll(internalIds);
+			addVersionsReplaced(entity.getClass().getSimpleName(), internalIds);
 		}
 	}
 
-	public Set<String> getVersionsReplaced(Class<? extends DomainEntity<?>> entityClass) {
+	private synchronized void addVersionsReplaced(String entityClassName, Set<String> internalIds) {
+		if (isVersionsReplacedDelta()) {
+			allVersionsReplaced().merge(entityClassName, InternalIdSet.of(internalIds), InternalIdSet::union);
+		}
+		compactVersionsReplaced().merge(entityClassName, InternalIdSet.of(internalIds), InternalIdSet::union);
+		versionsReplacedCounts = null;
+	}
+
+	/**
+	 * @return a new set of the internal ids of the given class replaced on this branch, which the caller may modify.
+	 * @see #getSharedVersionsReplaced(Class)
+	 */
+	public synchronized Set<String> getVersionsReplaced(Class<? extends DomainEntity<?>> entityClass) {
+		return new HashSet<>(getSharedVersionsReplaced(entityClass));
+	}
+
+	/**
+	 * @return immutable set of the internal ids of the given class replaced on this branch, shared rather than copied.
+	 */
+	public synchronized Set<String> getSharedVersionsReplaced(Class<? extends DomainEntity<?>> entityClass) {
 		if (notMAIN()) {
-			return new HashSet<>(versionsReplaced.getOrDefault(entityClass.getSimpleName(), Collections.emptySet()));
+			return (Set<String>) allVersionsReplaced().getOrDefault(entityClass.getSimpleName(), InternalIdSet.empty());
 		} else {
 			return Collections.emptySet();
 		}
 	}
 
+	private synchronized Map<String, Collection<String>> compactVersionsReplaced() {
+		loadExcludedFields();
+		return compact(versionsReplaced);
+	}
+
+	private static Map<String, Collection<String>> compact(Map<String, Collection<String>> versionsReplaced) {
+		for (Map.Entry<String, Collection<String>> entry : versionsReplaced.entrySet()) {
+			if (!(entry.getValue() instanceof InternalIdSet)) {
+				entry.setValue(InternalIdSet.of(entry.getValue()));
+			}
+		}
+		return versionsReplaced;
+	}
+
+	private synchronized Map<String, Collection<String>> allVersionsReplaced() {
+		loadExcludedFields();
+		if (!isVersionsReplacedDelta()) {
+			return compactVersionsReplaced();
+		}
+		if (resolvedVersionsReplaced == null) {
+			if (versionsReplacedLoader == null) {
+				throw new IllegalStateException("Versions replaced of branch " + getPath() + " at " + getMillis(getStart()) + " are stored as a delta and can not be loaded.");
+			}
+			resolvedVersionsReplaced = compact(new HashMap<>(versionsReplacedLoader.apply(this)));
+		}
+		return resolvedVersionsReplaced;
+	}
+
 	private boolean notMAIN() {
 		return !MAIN.equals(getPath());
 	}
@@ -175,20 +334,119 @@ public class Branch extends Entity {
 		this.containsContent = containsContent;
 	}
 
-	public Map<String, Set<String>> getVersionsReplaced() {
-		return MapUtil.convertToSet(versionsReplaced);
+	/**
+	 * @return a new map of new sets of the versions replaced on this branch, which the caller may modify.
+	 * @see #getSharedVersionsReplaced()
+	 */
+	public synchronized Map<String, Set<String>> getVersionsReplaced() {
+		Map<String, Set<String>> result = new HashMap<>();
+		allVersionsReplaced().forEach((key, value) -> result.put(key, new HashSet<>(value)));
+		return result;
 	}
 
-	public Map<String, Integer> getVersionsReplacedCounts() {
-		Map<String, Integer> counts = new HashMap<>();
-		for (String key : versionsReplaced.keySet()) {
-			counts.put(key, versionsReplaced.get(key).size());
+	/**
+	 * @return a new map of the versions replaced on this branch, the sets of internal ids are immutable and shared rather than copied.
+	 */
+	public synchronized Map<String, Set<String>> getSharedVersionsReplaced() {
+		Map<String, Set<String>> result = new HashMap<>();
+		allVersionsReplaced().forEach((key, value) -> result.put(key, (Set<String>) value));
+		return result;
+	}
+
+	/**
+	 * @return the number of versions replaced of each entity class, read from the stored counts without loading the versions replaced when the version has them.
+	 */
+	public synchronized Map<String, Integer> getVersionsReplacedCounts() {
+		if (versionsReplacedCounts == null) {
+			// Kept so that the counts are stored the next time this version is saved
+			versionsReplacedCounts = countVersionsReplaced(allVersionsReplaced());
 		}
+		return new HashMap<>(versionsReplacedCounts);
+	}
+
+	/**
+	 * @return true if the number of versions replaced of each entity class is known without loading the versions replaced.
+	 */
+	@JsonIgnore
+	public synchronized boolean isVersionsReplacedCounted() {
+		return versionsReplacedCounts != null;
+	}
+
+	private static Map<String, Integer> countVersionsReplaced(Map<String, ? extends Collection<String>> versionsReplaced) {
+		Map<String, Integer> counts = new HashMap<>();
+		versionsReplaced.forEach((key, value) -> counts.put(key, value.size()));
 		return counts;
 	}
 
-	public void setVersionsReplaced(Map<String, Set<String>> versionsReplaced) {
-		this.versionsReplaced = MapUtil.convertToCollection(versionsReplaced);
+	/**
+	 * Sets the full versions replaced, which are stored on this version as a snapshot.
+	 */
+	public synchronized void setVersionsReplaced(Map<String, Set<String>> versionsReplaced) {
+		versionsReplacedExcluded = false;
+		this.versionsReplaced = new HashMap<>();
+		versionsReplaced.forEach((key, value) -> this.versionsReplaced.put(key, InternalIdSet.of(value)));
+		versionsReplacedSnapshot = null;
+		versionsReplacedDeltas = 0;
+		resolvedVersionsReplaced = null;
+		versionsReplacedCounts = countVersionsReplaced(this.versionsReplaced);
+	}
+
+	/**
+	 * Stores only the versions replaced by the commit creating this version.
+	 * @param snapshot start of the branch version holding the full versions replaced this delta builds on.
+	 * @param deltas number of versions since the snapshot, including this one.
+	 * @param delta versions replaced by the commit.
+	 * @param allVersionsReplaced the full versions replaced of this version, kept in memory so they do not need to be loaded.
+	 */
+	public synchronized void setVersionsReplacedDelta(Date snapshot, int deltas, Map<String, Set<String>> delta, Map<String, Set<String>> allVersionsReplaced) {
+		setVersionsReplaced(delta);
+		versionsReplacedSnapshot = snapshot;
+		versionsReplacedDeltas = deltas;
+		resolvedVersionsReplaced = new HashMap<>();
+		allVersionsReplaced.forEach((key, value) -> resolvedVersionsReplaced.put(key, InternalIdSet.of(value)));
+		versionsReplacedCounts = countVersionsReplaced(resolvedVersionsReplaced);
+	}
+
+	/**
+	 * Copies the versions replaced as stored, without loading them, including the snapshot of a delta.
+	 */
+	public synchronized void setStoredVersionsReplaced(Branch other) {
+		versionsReplacedExcluded = false;
+		versionsReplaced = new HashMap<>(other.compactVersionsReplaced());
+		versionsReplacedSnapshot = other.versionsReplacedSnapshot;
+		versionsReplacedDeltas = other.versionsReplacedDeltas;
+		resolvedVersionsReplaced = other.resolvedVersionsReplaced != null ? new HashMap<>(other.resolvedVersionsReplaced) : null;
+		versionsReplacedCounts = other.versionsReplacedCounts != null ? new HashMap<>(other.versionsReplacedCounts) : null;
+		versionsReplacedLoader = other.versionsReplacedLoader;
+	}
+
+	/**
+	 * @return the versions replaced as stored on this version, only the delta when the version builds on a snapshot.
+	 */
+	@JsonIgnore
+	public synchronized Map<String, Set<String>> getStoredVersionsReplaced() {
+		Map<String, Set<String>> result = new HashMap<>();
+		compactVersionsReplaced().forEach((key, value) -> result.put(key, (Set<String>) value));
+		return result;
+	}
+
+	public boolean isVersionsReplacedDelta() {
+		return versionsReplacedSnapshot != null;
+	}
+
+	public Date getVersionsReplacedSnapshot() {
+		return versionsReplacedSnapshot;
+	}
+
+	public int getVersionsReplacedDeltas() {
+		return versionsReplacedDeltas;
+	}
+
+	/**
+	 * Sets the function used to load the full versions replaced of a version which only stores a delta.
+	 */
+	public synchronized void setVersionsReplacedLoader(Function<Branch, Map<String, Set<String>>> versionsReplacedLoader) {
+		this.versionsReplacedLoader = versionsReplacedLoader;
 	}
 
 	public BranchState getState() {
@@ -201,21 +459,60 @@ public class Branch extends Entity {
 	}
 
 	public Metadata getMetadata() {
+		loadExcludedFields();
 		return metadata;
 	}
 
 	public void setMetadata(Metadata metadata) {
+		metadataExcluded = false;
 		this.metadata = metadata;
 	}
 
 	public Map<String, String> getMetadataInternal() {
+		loadExcludedFields();
 		return metadataInternal;
 	}
 
 	public void setMetadataInternal(Map<String, String> metadataInternal) {
+		metadataExcluded = false;
 		this.metadataInternal = metadataInternal;
 	}
 
+	/**
+	 * Marks the versions replaced and metadata as not read, they are taken from the branch returned by the loader when first used.
+	 */
+	public synchronized void setExcludedFieldsLoader(Function<Branch, Branch> excludedFieldsLoader) {
+		this.excludedFieldsLoader = excludedFieldsLoader;
+		versionsReplacedExcluded = true;
+		metadataExcluded = true;
+	}
+
+	/**
+	 * @return true if the versions replaced or metadata were not read and have not been loaded yet.
+	 */
+	@JsonIgnore
+	public synchronized boolean isFieldsExcluded() {
+		return versionsReplacedExcluded || metadataExcluded;
+	}
+
+	/**
+	 * Loads any versions replaced and metadata which were not read with the branch, both from one branch returned by the loader.
+	 */
+	public synchronized void loadExcludedFields() {
+		if (!isFieldsExcluded()) {
+			return;
+		}
+		Branch loaded = excludedFieldsLoader.apply(this);
+		if (versionsReplacedExcluded) {
+			setStoredVersionsReplaced(loaded);
+		}
+		if (metadataExcluded) {
+			metadataExcluded = false;
+			metadataInternal = loaded.metadataInternal;
+			metadata = loaded.metadata;
+		}
+	}
+
 	@Override
 	public String toString() {
 		return "Branch{" +
@@ -1,7 +1,5 @@
 package io.kaicode.elasticvc.domain;
 
-import io.kaicode.elasticvc.api.MapUtil;
-
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
@@ -35,6 +33,7 @@ public class Commit implements AutoCloseable {
 	private final Consumer<Commit> onSuccess;
 	private final Consumer<Commit> onFailure;
 	private boolean successful;
+	private final CommitTimings timings = new CommitTimings();
 
 	public Commit(Branch branch, CommitType commitType, Consumer<Commit> onSuccess, Consumer<Commit> onFailure) {
 		this.branch = branch;
@@ -77,7 +76,7 @@ public class Commit implements AutoCloseable {
 	}
 
 	public void addVersionsReplaced(Set<String> internalIds, Class<? extends DomainEntity<?>> entityClass) {
-		entityVersionsReplaced.computeIfAbsent(entityClass.getSimpleName(), (c) -> new HashSet<>()).addAll(internalIds);
+		entityVersionsReplaced.computeIfAbsent(entityClass.getSimpleName(), (c) -> ConcurrentHashMap.newKeySet()).addAll(internalIds);
 	}
 
 	public void addVersionsDeleted(Set<String> entityIds) {
@@ -88,9 +87,24 @@ public class Commit implements AutoCloseable {
 		return entityVersionsReplaced;
 	}
 
+	/**
+	 * @return a new map of new sets of the versions replaced on the branch and within this commit, which the caller may modify.
+	 * @see #getSharedEntityVersionsReplacedIncludingFromBranch()
+	 */
 	public Map<String, Set<String>> getEntityVersionsReplacedIncludingFromBranch() {
-		Map<String, Set<String>> versions = MapUtil.addAll(entityVersionsReplaced, new HashMap<>());
-		return MapUtil.addAll(branch.getVersionsReplaced(), versions);
+		Map<String, Set<String>> versions = new HashMap<>();
+		getSharedEntityVersionsReplacedIncludingFromBranch().forEach((key, value) -> versions.put(key, new HashSet<>(value)));
+		return versions;
+	}
+
+	/**
+	 * @return a new map of the versions replaced on the branch and within this commit, the sets are immutable and shared rather than copied.
+	 */
+	public Map<String, Set<String>> getSharedEntityVersionsReplacedIncludingFromBranch() {
+		Map<String, Set<String>> versions = branch.getSharedVersionsReplaced();
+		// Copied so the returned sets do not change as the commit adds to its own
+		entityVersionsReplaced.forEach((key, value) -> versions.merge(key, InternalIdSet.of(value), InternalIdSet::union));
+		return versions;
 	}
 
 	public Map<String, Set<String>> getVersionsReplacedForPromotion() {
@@ -129,6 +143,13 @@ public class Commit implements AutoCloseable {
 		return domainEntityClasses;
 	}
 
+	/**
+	 * @return time spent in each phase of this commit so far.
+	 */
+	public CommitTimings getTimings() {
+		return timings;
+	}
+
 	@Override
 	public String toString() {
 		return "Commit{" +
@@ -0,0 +1,94 @@
+package io.kaicode.elasticvc.domain;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Time spent in each phase of a single commit.
+ * Batches may be saved on background threads so all methods are thread safe.
+ */
+public class CommitTimings {
+
+	private final AtomicLong lockNanos = new AtomicLong();
+	private final Map<String, Long> listenerNanos = new LinkedHashMap<>();
+	private final Map<String, Long> endOldVersionsNanos = new LinkedHashMap<>();
+	private final AtomicLong saveNanos = new AtomicLong();
+	private final AtomicLong branchWriteNanos = new AtomicLong();
+
+	public void recordLock(long nanos) {
+		lockNanos.addAndGet(nanos);
+	}
+
+	public synchronized void recordListener(String listener, long nanos) {
+		listenerNanos.merge(listener, nanos, Long::sum);
+	}
+
+	public synchronized void recordEndOldVersions(String entityClass, long nanos) {
+		endOldVersionsNanos.merge(entityClass, nanos, Long::sum);
+	}
+
+	public void recordSave(long nanos) {
+		saveNanos.addAndGet(nanos);
+	}
+
+	public void recordBranchWrite(long nanos) {
+		branchWriteNanos.addAndGet(nanos);
+	}
+
+	/**
+	 * @return time to acquire the branch lock, including the source branch of a promotion, in milliseconds.
+	 */
+	public long getLockMillis() {
+		return toMillis(lockNanos.get());
+	}
+
+	/**
+	 * @return time in each commit listener, by listener class name, in milliseconds.
+	 */
+	public synchronized Map<String, Long> getListenerMillis() {
+		return toMillis(listenerNanos);
+	}
+
+	/**
+	 * @return time ending old versions, by entity class name, in milliseconds.
+	 */
+	public synchronized Map<String, Long> getEndOldVersionsMillis() {
+		return toMillis(endOldVersionsNanos);
+	}
+
+	/**
+	 * @return total time of the bulk saves of new versions, in milliseconds.
+	 * When batches are saved in the background this may overlap with ending old versions.
+	 */
+	public long getSaveMillis() {
+		return toMillis(saveNanos.get());
+	}
+
+	/**
+	 * @return time to persist the new branch versions when the commit completes, in milliseconds.
+	 */
+	public long getBranchWriteMillis() {
+		return toMillis(branchWriteNanos.get());
+	}
+
+	private static Map<String, Long> toMillis(Map<String, Long> nanos) {
+		Map<String, Long> millis = new LinkedHashMap<>();
+		nanos.forEach((key, value) -> millis.put(key, toMillis(value)));
+		return millis;
+	}
+
+	private static long toMillis(long nanos) {
+		return TimeUnit.NANOSECONDS.toMillis(nanos);
+	}
+
+	@Override
+	public String toString() {
+		return "lockMs=" + getLockMillis() +
+				" listenersMs=" + getListenerMillis() +
+				" endOldVersionsMs=" + getEndOldVersionsMillis() +
+				" saveMs=" + getSaveMillis() +
+				" branchWriteMs=" + getBranchWriteMillis();
+	}
+}
@@ -0,0 +1,204 @@
+package io.kaicode.elasticvc.domain;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Compact immutable set of document internal ids.
+ * The ids are held sorted as UTF-8 bytes in a single array with an offset per id, which takes a fraction of the memory of a HashSet of Strings.
+ * Lookups use a binary search and Strings are only created when iterating.
+ * Instances are never modified so they can be shared between branch versions, caches and criteria without defensive copies.
+ */
+public final class InternalIdSet extends AbstractSet<String> {
+
+	private static final InternalIdSet EMPTY = new InternalIdSet(new byte[0], new int[] {0});
+
+	private final byte[] bytes;
+
+	// Start of each id within bytes, with one extra entry marking the end of the last id
+	private final int[] offsets;
+
+	// Cached hash code, 0 until computed
+	private int hash;
+
+	private InternalIdSet(byte[] bytes, int[] offsets) {
+		this.bytes = bytes;
+		this.offsets = offsets;
+	}
+
+	public static InternalIdSet empty() {
+		return EMPTY;
+	}
+
+	/**
+	 * @return the given ids as an InternalIdSet, the same instance if it is one already.
+	 */
+	public static InternalIdSet of(Collection<String> ids) {
+		if (ids == null || ids.isEmpty()) {
+			return EMPTY;
+		}
+		if (ids instanceof InternalIdSet internalIdSet) {
+			return internalIdSet;
+		}
+		// A snapshot first, the collection may be a concurrent set which is still being added to
+		String[] snapshot = ids.toArray(new String[0]);
+		byte[][] encoded = new byte[snapshot.length][];
+		for (int i = 0; i < snapshot.length; i++) {
+			encoded[i] = snapshot[i].getBytes(StandardCharsets.UTF_8);
+		}
+		Arrays.sort(encoded, Arrays::compareUnsigned);
+
+		int length = 0;
+		for (byte[] id : encoded) {
+			length += id.length;
+		}
+		byte[] bytes = new byte[length];
+		int[] offsets = new int[encoded.length + 1];
+		int size = 0;
+		int position = 0;
+		for (int j = 0; j < encoded.length; j++) {
+			if (j > 0 && Arrays.equals(encoded[j], encoded[j - 1])) {
+				continue;
+			}
+			System.arraycopy(encoded[j], 0, bytes, position, encoded[j].length);
+			offsets[size++] = position;
+			position += encoded[j].length;
+		}
+		offsets[size] = position;
+		return trimmed(bytes, position, offsets, size);
+	}
+
+	/**
+	 * @return a set containing the ids of both collections. Neither argument is modified, an argument is returned as is if the other adds nothing.
+	 */
+	public static InternalIdSet union(Collection<String> first, Collection<String> second) {
+		InternalIdSet a = of(first);
+		InternalIdSet b = of(second);
+		if (b.isEmpty() || a == b) {
+			return a;
+		}
+		if (a.isEmpty()) {
+			return b;
+		}
+
+		byte[] bytes = new byte[a.bytes.length + b.bytes.length];
+		int[] offsets = new int[a.size() + b.size() + 1];
+		int size = 0;
+		int position = 0;
+		int i = 0;
+		int j = 0;
+		while (i < a.size() || j < b.size()) {
+			int compare = i == a.size() ? 1 : j == b.size() ? -1 : Arrays.compareUnsigned(
+					a.bytes, a.offsets[i], a.offsets[i + 1], b.bytes, b.offsets[j], b.offsets[j + 1]);
+			InternalIdSet source = compare <= 0 ? a : b;
+			int index = compare <= 0 ? i : j;
+			int length = source.offsets[index + 1] - source.offsets[index];
+			System.arraycopy(source.bytes, source.offsets[index], bytes, position, length);
+			offsets[size++] = position;
+			position += length;
+			if (compare <= 0) {
+				i++;
+			}
+			if (compare >= 0) {
+				j++;
+			}
+		}
+		offsets[size] = position;
+		if (size == a.size()) {
+			return a;
+		}
+		if (size == b.size()) {
+			return b;
+		}
+		return trimmed(bytes, position, offsets, size);
+	}
+
+	private static InternalIdSet trimmed(byte[] bytes, int length, int[] offsets, int size) {
+		return new InternalIdSet(length == bytes.length ? bytes : Arrays.copyOf(bytes, length),
+				size + 1 == offsets.length ? offsets : Arrays.copyOf(offsets, size + 1));
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		if (!(o instanceof String id)) {
+			return false;
+		}
+		byte[] key = id.getBytes(StandardCharsets.UTF_8);
+		int low = 0;
+		int high = size() - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int compare = Arrays.compareUnsigned(bytes, offsets[mid], offsets[mid + 1], key, 0, key.length);
+			if (compare < 0) {
+				low = mid + 1;
+			} else if (compare > 0) {
+				high = mid - 1;
+			} else {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public Iterator<String> iterator() {
+		return new Iterator<>() {
+			private int index;
+
+			@Override
+			public boolean hasNext() {
+				return index < size();
+			}
+
+			@Override
+			public String next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				String id = new String(bytes, offsets[index], offsets[index + 1] - offsets[index], StandardCharsets.UTF_8);
+				index++;
+				return id;
+			}
+		};
+	}
+
+	@Override
+	public int size() {
+		return offsets.length - 1;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (o instanceof InternalIdSet other) {
+			return Arrays.equals(offsets, other.offsets) && Arrays.equals(bytes, other.bytes);
+		}
+		return super.equals(o);
+	}
+
+	/**
+	 * Same as the hash code of any other Set with the same ids, computed from the packed bytes.
+	 * Only ids with non ASCII characters are decoded, because for ASCII the UTF-8 bytes are the characters String.hashCode uses.
+	 */
+	@Override
+	public int hashCode() {
+		int h = hash;
+		if (h == 0) {
+			for (int i = 0; i < size(); i++) {
+				h += idHashCode(i);
+			}
+			hash = h;
+		}
+		return h;
+	}
+
+	private int idHashCode(int index) {
+		int h = 0;
+		for (int i = offsets[index]; i < offsets[index + 1]; i++) {
+			if (bytes[i] < 0) {
+				return new String(bytes, offsets[index], offsets[index + 1] - offsets[index], StandardCharsets.UTF_8).hashCode();
+			}
+			h = 31 * h + bytes[i];
+		}
+		return h;
+	}
+}
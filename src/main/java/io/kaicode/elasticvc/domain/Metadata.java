@@ -4,11 +4,29 @@ import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonRawValue;
 
 import java.util.*;
+import java.util.function.Function;
 
+/**
+ * Branch metadata. Values are strings, lists or maps.
+ * The flat form stored in Elasticsearch, where lists and maps are serialised to strings, is kept with the metadata.
+ * Metadata read from the flat form is only expanded when first accessed, and the flat form is only built again for values which have changed.
+ */
 public class Metadata {
 
 	@JsonIgnore
-	private final Map<String, Object> internalMap;
+	private Map<String, Object> internalMap;
+
+	// Flat form of the values, null until first flattened unless the metadata was read from the flat form
+	@JsonIgnore
+	private Map<String, String> flatMap;
+
+	// Copies of the non-string values at the time the flat form was built, used to detect changes including those within lists and maps
+	@JsonIgnore
+	private Map<String, Object> flatMapObjectValues;
+
+	// Set while the flat form has not been expanded
+	@JsonIgnore
+	private Function<Map<String, String>, Map<String, Object>> expander;
 
 	public Metadata() {
 		internalMap = new HashMap<>();
@@ -21,27 +39,116 @@ public class Metadata {
 		this.internalMap = internalMap;
 	}
 
+	/**
+	 * Metadata read from its flat form, the expander is only called when the values are first accessed.
+	 */
+	public Metadata(Map<String, String> flatMap, Function<Map<String, String>, Map<String, Object>> expander) {
+		this.flatMap = Collections.unmodifiableMap(new HashMap<>(flatMap));
+		this.expander = expander;
+	}
+
+	/**
+	 * @return the flat form of the values, reusing the previous flat form for values which have not changed since it was built.
+	 * @param serialiser used to serialise list and map values which are new or have changed.
+	 */
+	public Map<String, String> toFlatMap(Function<Object, String> serialiser) {
+		if (expander != null) {
+			return flatMap;
+		}
+		if (flatMap != null && isFlatMapCurrent()) {
+			return flatMap;
+		}
+		final Map<String, String> flat = new HashMap<>();
+		final Map<String, Object> objectValues = new HashMap<>();
+		internalMap.forEach((key, value) -> {
+			if (value instanceof String string) {
+				flat.put(key, string);
+			} else {
+				final boolean unchanged = flatMap != null && flatMapObjectValues.containsKey(key) && Objects.equals(flatMapObjectValues.get(key), value);
+				flat.put(key, unchanged ? flatMap.get(key) : serialiser.apply(value));
+				objectValues.put(key, deepCopy(value));
+			}
+		});
+		flatMap = Collections.unmodifiableMap(flat);
+		flatMapObjectValues = objectValues;
+		return flatMap;
+	}
+
+	private boolean isFlatMapCurrent() {
+		if (internalMap.size() != flatMap.size()) {
+			return false;
+		}
+		for (Map.Entry<String, Object> entry : internalMap.entrySet()) {
+			final String key = entry.getKey();
+			final Object value = entry.getValue();
+			if (value instanceof String) {
+				if (flatMapObjectValues.containsKey(key) || !value.equals(flatMap.get(key))) {
+					return false;
+				}
+			} else if (!flatMapObjectValues.containsKey(key) || !Objects.equals(flatMapObjectValues.get(key), value)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private Map<String, Object> map() {
+		if (expander != null) {
+			internalMap = expander.apply(flatMap);
+			expander = null;
+			flatMapObjectValues = new HashMap<>();
+			internalMap.forEach((key, value) -> {
+				if (!(value instanceof String)) {
+					flatMapObjectValues.put(key, deepCopy(value));
+				}
+			});
+		}
+		return internalMap;
+	}
+
+	/**
+	 * @return a copy of the metadata whose lists and maps can be modified without affecting this metadata.
+	 */
+	public Metadata copy() {
+		final Map<String, Object> copy = new HashMap<>();
+		map().forEach((key, value) -> copy.put(key, deepCopy(value)));
+		return new Metadata(copy);
+	}
+
+	private static Object deepCopy(Object value) {
+		if (value instanceof Map<?, ?> map) {
+			final Map<Object, Object> copy = new LinkedHashMap<>();
+			map.forEach((key, mapValue) -> copy.put(key, deepCopy(mapValue)));
+			return copy;
+		} else if (value instanceof List<?> list) {
+			return list.stream().map(Metadata::deepCopy).collect(ArrayList::new, ArrayList::add, ArrayList::addAll);
+		} else if (value instanceof Set<?> set) {
+			return set.stream().map(Metadata::deepCopy).collect(LinkedHashSet::new, LinkedHashSet::add, LinkedHashSet::addAll);
+		}
+		return value;
+	}
+
 	public boolean containsKey(String key) {
-		return internalMap.containsKey(key);
+		return map().containsKey(key);
 	}
 
 	public Metadata putString(String key, String value) {
-		internalMap.put(key, value);
+		map().put(key, value);
 		return this;
 	}
 
 	public String getString(String key) {
-		return (String) internalMap.get(key);
+		return (String) map().get(key);
 	}
 
 	public List<String> getList(String key) {
 		@SuppressWarnings("unchecked")
-		final List<String> list = (List<String>) internalMap.get(key);
+		final List<String> list = (List<String>) map().get(key);
 		return list;
 	}
 
 	public Metadata putMap(String key, Map<String, String> value) {
-		internalMap.put(key, value);
+		map().put(key, value);
 		return this;
 	}
 
@@ -56,31 +163,31 @@ public class Metadata {
 
 	public Map<String, String> getMap(String key) {
 		@SuppressWarnings("unchecked")
-		final Map<String, String> stringStringMap = (Map<String, String>) internalMap.get(key);
+		final Map<String, String> stringStringMap = (Map<String, String>) map().get(key);
 		return stringStringMap;
 	}
 
 	public void remove(String key) {
-		internalMap.remove(key);
+		map().remove(key);
 	}
 
 	public void putAll(Map<String, Object> metadata) {
-		internalMap.putAll(metadata);
+		map().putAll(metadata);
 	}
 
 	@JsonRawValue
 	public Map<String, Object> getAsMap() {
-		return internalMap;
+		return map();
 	}
 
 	public int size() {
-		return internalMap.size();
+		return map().size();
 	}
 
 	@Override
 	public String toString() {
 		return "Metadata{" +
-				"map=" + internalMap +
+				"map=" + map() +
 				'}';
 	}
 }
@@ -12,6 +12,10 @@ public class QueryHelper {
         return new TermsQuery.Builder().field(field).terms(tq -> tq.value(values.stream().map(JsonData::of).map(FieldValue::of).toList())).build()._toQuery();
     }
 
+    public static Query termsLookupQuery(String field, String index, String documentId, String path) {
+        return new TermsQuery.Builder().field(field).terms(tq -> tq.lookup(l -> l.index(index).id(documentId).path(path))).build()._toQuery();
+    }
+
     public static Query existsQuery(String field) {
         return new ExistsQuery.Builder().field(field).build()._toQuery();
     }
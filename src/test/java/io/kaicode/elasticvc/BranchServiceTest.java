@@ -2,21 +2,36 @@ package io.kaicode.elasticvc;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.kaicode.elasticvc.api.AsyncBranchService;
+import io.kaicode.elasticvc.api.BranchCriteria;
 import io.kaicode.elasticvc.api.BranchService;
+import io.kaicode.elasticvc.api.ComponentService;
 import io.kaicode.elasticvc.domain.Branch;
 import io.kaicode.elasticvc.domain.Commit;
+import io.kaicode.elasticvc.example.domain.Concept;
 import io.kaicode.elasticvc.repositories.BranchRepository;
 import org.assertj.core.util.Maps;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.elasticsearch.client.elc.NativeQueryBuilder;
+import org.springframework.data.elasticsearch.core.RefreshPolicy;
 import org.springframework.data.elasticsearch.core.IndexOperations;
+import org.springframework.data.elasticsearch.core.document.Document;
 import org.springframework.data.elasticsearch.core.index.Settings;
 import org.springframework.data.elasticsearch.core.mapping.IndexCoordinates;
+import org.springframework.data.elasticsearch.core.query.ScriptType;
+import org.springframework.data.elasticsearch.core.query.SeqNoPrimaryTerm;
+import org.springframework.data.elasticsearch.core.query.UpdateQuery;
+import org.springframework.test.util.ReflectionTestUtils;
 import org.testcontainers.junit.jupiter.Testcontainers;
 
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.*;
 
 import static io.kaicode.elasticvc.domain.Branch.BranchState.*;
 import static org.junit.jupiter.api.Assertions.*;
@@ -30,6 +45,9 @@ public class BranchServiceTest extends AbstractTest {
 	@Autowired
 	private BranchRepository branchRepository;
 
+	@Autowired
+	private AsyncBranchService asyncBranchService;
+
 	@Autowired
 	private ObjectMapper objectMapper;
 
@@ -114,6 +132,196 @@ public class BranchServiceTest extends AbstractTest {
 		assertEquals("MAIN/C/something/thing", cChildren.get(1).getPath());
 	}
 
+	@Test
+	public void testFindChildrenByLevel() {
+		branchService.create("MAIN");
+		branchService.create("MAIN/A");
+		branchService.create("MAIN/A/AA");
+		branchService.create("MAIN/C");
+		branchService.create("MAIN/C/something");
+		branchService.create("MAIN/C/something/thing");
+		branchService.create("MAIN/B");
+
+		assertEquals(List.of("MAIN/A", "MAIN/B", "MAIN/C"), getPaths(branchService.findChildren("MAIN", true)));
+		assertEquals(List.of("MAIN/C/something"), getPaths(branchService.findChildren("MAIN/C", true)));
+		assertEquals(0, branchService.findChildren("MAIN/B", true).size());
+
+		Page<Branch> page = branchService.findChildren("MAIN", 2, PageRequest.of(0, 3));
+		assertEquals(5, page.getTotalElements());
+		assertEquals(List.of("MAIN/A", "MAIN/A/AA", "MAIN/B"), getPaths(page.getContent()));
+		page = branchService.findChildren("MAIN", 2, PageRequest.of(1, 3));
+		assertEquals(List.of("MAIN/C", "MAIN/C/something"), getPaths(page.getContent()));
+	}
+
+	@Test
+	public void testUpdateBranchPathFields() {
+		branchService.create("MAIN");
+		branchService.create("MAIN/A");
+		branchService.create("MAIN/A/AA");
+
+		// Remove the fields as if the documents were written by an earlier version
+		elasticsearchOperations.updateByQuery(UpdateQuery.builder(new NativeQueryBuilder().build())
+				.withScript("ctx._source.remove('parentPath'); ctx._source.remove('depth'); ctx._source.remove('ancestors')")
+				.withScriptType(ScriptType.INLINE)
+				.withLang("painless")
+				.withRefreshPolicy(RefreshPolicy.IMMEDIATE)
+				.build(), elasticsearchOperations.getIndexCoordinatesFor(Branch.class));
+		// Children are still found by path before the migration has run
+		assertEquals(List.of("MAIN/A"), getPaths(branchService.findChildren("MAIN", true)));
+		assertEquals(List.of("MAIN/A", "MAIN/A/AA"), getPaths(branchService.findChildren("MAIN")));
+		assertEquals(List.of("MAIN/A"), getPaths(branchService.findChildren("MAIN", 1, PageRequest.of(0, 10)).getContent()));
+		assertEquals(List.of("MAIN/A", "MAIN/A/AA"), getPaths(branchService.findChildren("MAIN", 2, PageRequest.of(0, 10)).getContent()));
+		assertEquals(Set.of("MAIN", "MAIN/A", "MAIN/A/AA"), branchService.findSubtreeStates("MAIN").keySet());
+
+		assertEquals(3, branchService.updateBranchPathFields());
+		assertEquals(List.of("MAIN/A"), getPaths(branchService.findChildren("MAIN", true)));
+		assertEquals(List.of("MAIN/A", "MAIN/A/AA"), getPaths(branchService.findChildren("MAIN")));
+		Branch branch = branchService.findLatest("MAIN/A/AA");
+		assertEquals("MAIN/A", branch.getParentPath());
+		assertEquals(3, branch.getDepth());
+		assertEquals(List.of("MAIN", "MAIN/A"), branch.getAncestors());
+		assertEquals(0, branchService.updateBranchPathFields());
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testUpdateMappingOfExistingBranchIndex() {
+		final IndexOperations indexOps = elasticsearchOperations.indexOps(Branch.class);
+		try {
+			// Recreate the branch index with the mapping of an earlier version, without the path fields
+			final Map<String, Object> oldProperties = new HashMap<>((Map<String, Object>) indexOps.createMapping(Branch.class).get("properties"));
+			oldProperties.keySet().removeAll(Set.of(Branch.Fields.PARENT_PATH, Branch.Fields.DEPTH, Branch.Fields.ANCESTORS));
+			indexOps.delete();
+			indexOps.create(indexOps.createSettings(Branch.class), Document.from(Map.of("properties", oldProperties)));
+
+			// Startup puts the current mapping on the existing index before any branch is saved
+			ComponentService.initialiseIndexAndMappingForPersistentClasses(false, elasticsearchOperations, Concept.class);
+			final Map<String, Object> properties = (Map<String, Object>) indexOps.getMapping().get("properties");
+			assertEquals("keyword", ((Map<String, Object>) properties.get(Branch.Fields.PARENT_PATH)).get("type"));
+			assertEquals("keyword", ((Map<String, Object>) properties.get(Branch.Fields.ANCESTORS)).get("type"));
+			branchService.create("MAIN");
+			branchService.create("MAIN/A");
+			branchService.create("MAIN/A/AA");
+			// Remove the fields from the earlier branches as if they were written by the earlier version
+			elasticsearchOperations.updateByQuery(UpdateQuery.builder(new NativeQueryBuilder().build())
+					.withScript("if (ctx._source.path != 'MAIN/A/AA') { ctx._source.remove('parentPath'); ctx._source.remove('depth'); ctx._source.remove('ancestors') }")
+					.withScriptType(ScriptType.INLINE)
+					.withLang("painless")
+					.withRefreshPolicy(RefreshPolicy.IMMEDIATE)
+					.build(), elasticsearchOperations.getIndexCoordinatesFor(Branch.class));
+
+			assertEquals(2, branchService.updateBranchPathFields());
+			assertEquals(List.of("MAIN/A"), getPaths(branchService.findChildren("MAIN", true)));
+			assertEquals(List.of("MAIN/A/AA"), getPaths(branchService.findChildren("MAIN/A", true)));
+			assertEquals(1, branchService.findLatest("MAIN").getDepth());
+		} finally {
+			indexOps.delete();
+			indexOps.create(indexOps.createSettings(Branch.class), indexOps.createMapping(Branch.class));
+		}
+	}
+
+	@Test
+	public void testFindTimeSlices() throws InterruptedException {
+		branchService.create("MAIN");
+		makeEmptyCommit("MAIN");
+		branchService.create("MAIN/A");
+		makeEmptyCommit("MAIN");
+		branchService.create("MAIN/A/A1");
+		makeEmptyCommit("MAIN/A");
+		Thread.sleep(5);
+		final Date beforeRebase = new Date();
+		Thread.sleep(5);
+		makeEmptyCommit("MAIN");
+		try (Commit commit = branchService.openRebaseCommit("MAIN/A")) {
+			commit.markSuccessful();
+		}
+		makeEmptyCommit("MAIN/A/A1");
+		final Date now = new Date();
+
+		final List<List<Branch>> timeSlices = branchService.findTimeSlices("MAIN/A/A1", List.of(beforeRebase, now));
+		assertEquals(2, timeSlices.size());
+		for (int i = 0; i < timeSlices.size(); i++) {
+			final List<Branch> timeSlice = timeSlices.get(i);
+			assertEquals(List.of("MAIN/A/A1", "MAIN/A", "MAIN"), getPaths(timeSlice));
+			Date timepoint = i == 0 ? beforeRebase : now;
+			for (Branch branch : timeSlice) {
+				assertEquals(branchService.findAtTimepointOrThrow(branch.getPath(), timepoint).getStart(), branch.getStart());
+				timepoint = branch.getBase();
+			}
+		}
+		assertNotEquals(timeSlices.get(0).get(0).getStart(), timeSlices.get(1).get(0).getStart());
+
+		// Resolved again from the cache
+		assertEquals(getPaths(timeSlices.get(1)), getPaths(branchService.findTimeSlices("MAIN/A/A1", List.of(now)).get(0)));
+
+		assertThrows(IllegalStateException.class, () -> branchService.findTimeSlices("MAIN/A/A1", List.of(new Date(0))));
+	}
+
+	@Test
+	public void testFindTimeSlicesWithVersionsOfTheSameStart() {
+		branchService.create("MAIN");
+		branchService.create("MAIN/A");
+		makeEmptyCommit("MAIN/A");
+		// The promotion writes versions of MAIN and MAIN/A with the same start
+		try (Commit commit = branchService.openPromotionCommit("MAIN", "MAIN/A")) {
+			commit.markSuccessful();
+		}
+		final Branch main = branchService.findLatest("MAIN");
+		final Branch branchA = branchService.findLatest("MAIN/A");
+		assertEquals(main.getStart(), branchA.getStart());
+
+		final List<Branch> timeSlice = branchService.findTimeSlices("MAIN/A", List.of(new Date())).get(0);
+		assertEquals(List.of("MAIN/A", "MAIN"), getPaths(timeSlice));
+		assertEquals(branchA.getInternalId(), timeSlice.get(0).getInternalId());
+		assertEquals(main.getInternalId(), timeSlice.get(1).getInternalId());
+	}
+
+	@Test
+	public void testFindTimeSlicesWithManyParentCommitsAfterBase() {
+		branchService.create("MAIN");
+		branchService.create("MAIN/A");
+		final Branch branchA = branchService.findLatest("MAIN/A");
+		final Branch mainAtBase = branchService.findAtTimepointOrThrow("MAIN", branchA.getBase());
+		for (int i = 0; i < 20; i++) {
+			makeEmptyCommit("MAIN");
+		}
+		final Date now = new Date();
+
+		final List<List<Branch>> timeSlices = branchService.findTimeSlices("MAIN/A", List.of(branchA.getStart(), now));
+		for (List<Branch> timeSlice : timeSlices) {
+			assertEquals(List.of("MAIN/A", "MAIN"), getPaths(timeSlice));
+			assertEquals(branchA.getInternalId(), timeSlice.get(0).getInternalId());
+			// Only the version of MAIN at the base of MAIN/A, not any of the later ones
+			assertEquals(mainAtBase.getInternalId(), timeSlice.get(1).getInternalId());
+		}
+	}
+
+	@Test
+	public void testAsyncReads() throws Exception {
+		branchService.create("MAIN");
+		branchService.create("MAIN/A");
+		makeEmptyCommit("MAIN/A");
+		final Date now = new Date();
+
+		CompletableFuture<Branch> main = asyncBranchService.findLatest("MAIN");
+		CompletableFuture<Branch> a = asyncBranchService.findAtTimepointOrThrow("MAIN/A", now);
+		CompletableFuture<List<Branch>> timeSlice = asyncBranchService.getTimeSlice("MAIN/A", now);
+		CompletableFuture<BranchCriteria> branchCriteria = asyncBranchService.getBranchCriteria("MAIN/A");
+		CompletableFuture.allOf(main, a, timeSlice, branchCriteria).get(30, TimeUnit.SECONDS);
+
+		assertEquals(branchService.findLatest("MAIN").getHead(), main.get().getHead());
+		assertEquals(branchService.findLatest("MAIN/A").getHead(), a.get().getHead());
+		assertEquals(List.of("MAIN/A", "MAIN"), getPaths(timeSlice.get()));
+		assertEquals("MAIN/A", branchCriteria.get().getBranchPath());
+
+		ExecutionException exception = assertThrows(ExecutionException.class, () -> asyncBranchService.findAtTimepointOrThrow("MAIN/B", now).get());
+		assertInstanceOf(IllegalStateException.class, exception.getCause());
+	}
+
+	private List<String> getPaths(List<Branch> branches) {
+		return branches.stream().map(Branch::getPath).toList();
+	}
+
 	@Test
 	public void testBranchState() {
 		IndexOperations indexOps = elasticsearchOperations.indexOps(Branch.class);
@@ -148,6 +356,8 @@ public class BranchServiceTest extends AbstractTest {
 		assertBranchState("MAIN/A", DIVERGED);
 		assertBranchState("MAIN/A/A1", BEHIND);
 		assertBranchState("MAIN/B", BEHIND);
+		assertEquals(List.of("MAIN/A", "MAIN/A/A1"), new ArrayList<>(branchService.findSubtreeStates("MAIN/A").keySet()));
+		assertEquals(Map.of("MAIN/A/A1", BEHIND, "MAIN/B", BEHIND), branchService.findStates(List.of("MAIN/B", "MAIN/A/A1", "MAIN/X")));
 
 		assertNull(branchService.findBranchOrThrow("MAIN/A").getLastPromotion());
 
@@ -231,6 +441,36 @@ public class BranchServiceTest extends AbstractTest {
 		assertEquals(2, replaced.size());
 	}
 
+	@Test
+	public void testListingExcludesVersionsReplacedAndMetadata() {
+		branchService.create("MAIN");
+		Branch a = branchService.create("MAIN/A", Map.of("team", "A"));
+		a.setVersionsReplaced(Map.of("Concept", Set.of("123", "234")));
+		branchRepository.save(a);
+		branchService.create("MAIN/B", Map.of("team", "B"));
+
+		List<Branch> children = branchService.findChildren("MAIN", true);
+		assertEquals(2, children.size());
+		assertTrue(children.stream().allMatch(Branch::isFieldsExcluded));
+
+		// Loaded when first used
+		Branch childA = children.get(0);
+		assertEquals("A", childA.getMetadata().getString("team"));
+		assertEquals(Set.of("123", "234"), childA.getVersionsReplaced().get("Concept"));
+		assertFalse(childA.isFieldsExcluded());
+
+		// Or for many branches at once
+		branchService.loadExcludedFields(children);
+		Branch childB = children.get(1);
+		assertFalse(childB.isFieldsExcluded());
+		assertEquals("B", childB.getMetadata().getString("team"));
+		assertEquals(Map.of(), childB.getVersionsReplaced());
+
+		Branch version = branchService.findAllVersions("MAIN/A", PageRequest.of(0, 10)).getContent().get(0);
+		assertTrue(version.isFieldsExcluded());
+		assertEquals("A", version.getMetadata().getString("team"));
+	}
+
 	@Test
 	public void testLoadInheritedMetadata() {
 		Map<String, Object> metadataA = new HashMap<>();
@@ -271,6 +511,103 @@ public class BranchServiceTest extends AbstractTest {
 		assertEquals(mergedMetadata, branchService.findBranchOrThrow("MAIN/one/two", true).getMetadata().getAsMap());
 	}
 
+	@Test
+	void testConcurrentLocking() throws Exception {
+		branchService.create("MAIN");
+		branchService.create("MAIN/A");
+		branchService.create("MAIN/B");
+		final int threads = 8;
+		ExecutorService executorService = Executors.newFixedThreadPool(threads);
+		try {
+			// Only one of the commits on the same branch can be opened
+			List<Commit> commits = openCommitsConcurrently(executorService, Collections.nCopies(threads, "MAIN/A"));
+			assertEquals(1, commits.size());
+			assertTrue(branchService.findLatest("MAIN/A").isLocked());
+			commits.get(0).markSuccessful();
+			commits.get(0).close();
+			assertFalse(branchService.findLatest("MAIN/A").isLocked());
+
+			// Commits on different branches do not contend
+			commits = openCommitsConcurrently(executorService, List.of("MAIN", "MAIN/A", "MAIN/B"));
+			assertEquals(3, commits.size());
+			for (Commit commit : commits) {
+				commit.close();
+			}
+		} finally {
+			executorService.shutdownNow();
+		}
+	}
+
+	@Test
+	void testConditionalLockWithoutStripeLock() {
+		branchService.create("MAIN");
+		branchService.create("MAIN/A");
+
+		// Two reads of the same branch version, as made by two application instances which do not share the in-JVM stripe lock
+		Object first = ReflectionTestUtils.invokeMethod(branchService, "findLatestForUpdate", "MAIN/A");
+		Object second = ReflectionTestUtils.invokeMethod(branchService, "findLatestForUpdate", "MAIN/A");
+		SeqNoPrimaryTerm firstSeqNo = ReflectionTestUtils.invokeMethod(first, "seqNoPrimaryTerm");
+		SeqNoPrimaryTerm secondSeqNo = ReflectionTestUtils.invokeMethod(second, "seqNoPrimaryTerm");
+		assertNotNull(firstSeqNo);
+		assertEquals(firstSeqNo, secondSeqNo);
+
+		ReflectionTestUtils.invokeMethod(branchService, "lockBranch", ReflectionTestUtils.invokeMethod(first, "branch"), "first", firstSeqNo);
+		assertThrows(OptimisticLockingFailureException.class, () -> ReflectionTestUtils.invokeMethod(branchService, "lockBranch",
+				ReflectionTestUtils.invokeMethod(second, "branch"), "second", secondSeqNo));
+		assertEquals("first", branchService.getLockMessageOrNull(branchService.findLatest("MAIN/A")));
+
+		// Reading the branch again sees the lock
+		assertThrows(IllegalStateException.class, () -> branchService.lockBranch("MAIN/A", "second"));
+	}
+
+	@Test
+	void testRepositorySaveAfterConcurrentUpdate() {
+		branchService.create("MAIN");
+		final String id = branchService.create("MAIN/A").getInternalId();
+
+		// Read by a downstream application, then changed by another instance before it is saved
+		Branch stale = elasticsearchOperations.get(id, Branch.class);
+		branchService.updateMetadata("MAIN/A", Map.of("shortname", "A"));
+
+		// Only locking is a conditional write, other saves of a loaded branch still succeed
+		stale.setMetadataInternal(Map.of("shortname", "B"));
+		assertDoesNotThrow(() -> branchRepository.save(stale));
+		assertEquals("B", elasticsearchOperations.get(id, Branch.class).getMetadataInternal().get("shortname"));
+	}
+
+	@Test
+	void testPromotionReleasesSourceLockWhenTargetLocked() {
+		branchService.create("MAIN");
+		branchService.create("MAIN/A");
+		branchService.lockBranch("MAIN", null);
+		assertThrows(IllegalStateException.class, () -> branchService.openPromotionCommit("MAIN", "MAIN/A"));
+		assertFalse(branchService.findLatest("MAIN/A").isLocked());
+	}
+
+	private List<Commit> openCommitsConcurrently(ExecutorService executorService, List<String> paths) throws Exception {
+		CountDownLatch start = new CountDownLatch(1);
+		List<Future<Commit>> futures = new ArrayList<>();
+		for (String path : paths) {
+			futures.add(executorService.submit(() -> {
+				start.await();
+				try {
+					return branchService.openCommit(path);
+				} catch (IllegalStateException e) {
+					return null;
+				}
+			}));
+		}
+		start.countDown();
+		List<Commit> commits = new ArrayList<>();
+		for (Future<Commit> future : futures) {
+			Commit commit = future.get(1, TimeUnit.MINUTES);
+			if (commit != null) {
+				commits.add(commit);
+			}
+		}
+		return commits;
+	}
+
 	@Test
 	void testIndexConfigs() {
 		IndexCoordinates indexCoordinates = elasticsearchOperations.getIndexCoordinatesFor(Branch.class);
@@ -281,6 +618,8 @@ public class BranchServiceTest extends AbstractTest {
 	}
 	private void assertBranchState(String path, Branch.BranchState status) {
 		assertEquals(status, branchService.findLatest(path).getState());
+		assertEquals(Map.of(path, status), branchService.findStates(List.of(path)));
+		assertEquals(status, branchService.findSubtreeStates("MAIN").get(path));
 	}
 
 	private void makeEmptyCommit(String path) {
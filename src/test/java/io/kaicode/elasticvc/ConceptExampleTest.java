@@ -1,23 +1,34 @@
 package io.kaicode.elasticvc;
 
+import co.elastic.clients.elasticsearch.indices.IndexTemplate;
+import io.kaicode.elasticvc.api.BranchCriteria;
 import io.kaicode.elasticvc.api.BranchService;
 import io.kaicode.elasticvc.api.ComponentService;
+import io.kaicode.elasticvc.api.ElasticVCExecutor;
 import io.kaicode.elasticvc.api.VersionControlHelper;
+import io.kaicode.elasticvc.api.VersionsReplacedLoader;
 import io.kaicode.elasticvc.domain.Branch;
 import io.kaicode.elasticvc.domain.Commit;
 import io.kaicode.elasticvc.example.domain.Concept;
+import io.kaicode.elasticvc.example.service.ConceptRepository;
 import io.kaicode.elasticvc.example.service.ConceptService;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.elasticsearch.client.elc.ElasticsearchTemplate;
 import org.springframework.data.elasticsearch.client.elc.NativeQueryBuilder;
+import org.springframework.data.elasticsearch.core.IndexOperations;
 import org.springframework.data.elasticsearch.core.SearchHits;
 import org.springframework.data.elasticsearch.core.index.Settings;
+import org.springframework.data.elasticsearch.core.index.TemplateResponse;
 import org.springframework.data.elasticsearch.core.mapping.IndexCoordinates;
 import org.springframework.data.elasticsearch.core.query.FetchSourceFilter;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import java.util.*;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 import static co.elastic.clients.elasticsearch._types.query_dsl.QueryBuilders.bool;
 import static io.kaicode.elasticvc.helper.QueryHelper.termQuery;
@@ -32,6 +43,15 @@ class ConceptExampleTest extends AbstractTest {
 	@Autowired
 	private BranchService branchService;
 
+	@Autowired
+	private VersionControlHelper versionControlHelper;
+
+	@Autowired
+	private ConceptRepository conceptRepository;
+
+	@Autowired
+	private VersionsReplacedLoader versionsReplacedLoader;
+
 	@Test
 	void testBranchDoesNotExist() {
 		Assertions.assertThrows(IllegalArgumentException.class, () -> conceptService.findConcept("1", "MAIN"));
@@ -228,6 +248,117 @@ class ConceptExampleTest extends AbstractTest {
 	}
 
 
+	@Test
+	void testIndexTemplateWithConflictingTemplate() {
+		// Another template matching the same indices, with the default priority
+		((ElasticsearchTemplate) elasticsearchOperations).execute(client -> client.indices().putIndexTemplate(request -> request
+				.name("conflicting")
+				.indexPatterns("test_*")
+				.template(template -> template.settings(settings -> settings.numberOfShards("3")))));
+		try {
+			Map<String, Object> settings = new HashMap<>();
+			settings.put("index.number_of_shards", "2");
+			assertThrows(RuntimeException.class, () -> ComponentService.initialiseIndexAndMappingForPersistentClasses(
+					true, elasticsearchOperations, settings, new ComponentService.IndexTemplate("test_", ComponentService.DEFAULT_INDEX_TEMPLATE_PRIORITY), null, Concept.class));
+
+			ComponentService.initialiseIndexAndMappingForPersistentClasses(
+					true, elasticsearchOperations, settings, new ComponentService.IndexTemplate("test_", 10), null, Concept.class);
+			IndexTemplate template = ((ElasticsearchTemplate) elasticsearchOperations).execute(client ->
+					client.indices().getIndexTemplate(request -> request.name(ComponentService.INDEX_TEMPLATE_NAME))).indexTemplates().get(0).indexTemplate();
+			assertEquals(List.of("test_*"), template.indexPatterns());
+			assertEquals(10, template.priority());
+			// The settings of the template with the higher priority are used
+			assertEquals("2", elasticsearchOperations.indexOps(Concept.class).getSettings().getString("index.number_of_shards"));
+		} finally {
+			elasticsearchOperations.indexOps(Concept.class).deleteIndexTemplate("conflicting");
+			elasticsearchOperations.indexOps(Concept.class).deleteIndexTemplate(ComponentService.INDEX_TEMPLATE_NAME);
+			ComponentService.initialiseIndexAndMappingForPersistentClasses(
+					true,
+					elasticsearchOperations,
+					Concept.class
+			);
+		}
+	}
+
+	@Test
+	void testCreateIndexWithTemplateInParallel() {
+		try {
+			Map<String, Object> settings = new HashMap<>();
+			settings.put("index.number_of_shards", "2");
+			ComponentService.initialiseIndexAndMappingForPersistentClasses(
+					true,
+					elasticsearchOperations,
+					settings,
+					true,
+					new ElasticVCExecutor(4, false),
+					Concept.class
+			);
+			IndexOperations conceptIndex = elasticsearchOperations.indexOps(Concept.class);
+			assertEquals("2", conceptIndex.getSettings().getString("index.number_of_shards"));
+			// Fields left out of the create request are mapped by the template
+			assertTrue(conceptIndex.getMapping().toString().contains("term"));
+			assertTrue(conceptIndex.getMapping().toString().contains("path"));
+			assertEquals("2", elasticsearchOperations.indexOps(Branch.class).getSettings().getString("index.number_of_shards"));
+
+			List<TemplateResponse> templates = conceptIndex.getIndexTemplate(ComponentService.INDEX_TEMPLATE_NAME);
+			assertEquals(1, templates.size());
+			Map<String, Object> templateMapping = templates.get(0).templateData().mapping();
+			assertTrue(templateMapping.toString().contains("path"));
+			assertFalse(templateMapping.toString().contains("term"));
+
+			// Existing indices are left as they are
+			settings.put("index.number_of_shards", "3");
+			ComponentService.initialiseIndexAndMappingForPersistentClasses(
+					false,
+					elasticsearchOperations,
+					settings,
+					Concept.class
+			);
+			assertEquals("2", conceptIndex.getSettings().getString("index.number_of_shards"));
+		} finally {
+			elasticsearchOperations.indexOps(Concept.class).deleteIndexTemplate(ComponentService.INDEX_TEMPLATE_NAME);
+			// Reset to default
+			ComponentService.initialiseIndexAndMappingForPersistentClasses(
+					true,
+					elasticsearchOperations,
+					Concept.class
+			);
+		}
+	}
+
+	@Test
+	void testVersionsReplacedDeltas() {
+		ReflectionTestUtils.setField(branchService, "versionsReplacedSnapshotInterval", 3);
+		try {
+			branchService.create("MAIN");
+			for (int i = 1; i <= 4; i++) {
+				conceptService.createUpdateConcept(new Concept(String.valueOf(i), "Concept in MAIN"), "MAIN");
+			}
+			branchService.create("MAIN/A");
+
+			// Third commit reaches the interval so stores a snapshot
+			boolean[] expectedDelta = {true, true, false, true};
+			for (int i = 1; i <= 4; i++) {
+				conceptService.createUpdateConcept(new Concept(String.valueOf(i), "Updated on MAIN/A"), "MAIN/A");
+				versionsReplacedLoader.invalidateAll();
+
+				Branch latest = branchService.findLatest("MAIN/A");
+				assertEquals(expectedDelta[i - 1], latest.isVersionsReplacedDelta(), "Commit " + i);
+				assertEquals(expectedDelta[i - 1] ? 1 : i, latest.getStoredVersionsReplaced().get("Concept").size(), "Commit " + i);
+				assertEquals(i, latest.getVersionsReplaced().get("Concept").size(), "Commit " + i);
+				for (int j = 1; j <= 4; j++) {
+					assertEquals(j <= i ? "Updated on MAIN/A" : "Concept in MAIN", conceptService.findConcept(String.valueOf(j), "MAIN/A").getTerm());
+				}
+			}
+
+			// Earlier versions load their own versions replaced
+			Branch previous = branchService.findAtTimepointOrThrow("MAIN/A", new Date(branchService.findLatest("MAIN/A").getStart().getTime() - 1));
+			assertEquals(3, previous.getVersionsReplaced().get("Concept").size());
+		} finally {
+			ReflectionTestUtils.setField(branchService, "versionsReplacedSnapshotInterval", 0);
+		}
+	}
+
 	@Test
 	void testSavingConcepts() {
 		// Create a concept in MAIN
@@ -397,6 +528,186 @@ class ConceptExampleTest extends AbstractTest {
 
 	}
 
+	@Test
+	void testPipelinedSave() {
+		ReflectionTestUtils.setField(conceptService, "saveBatchSize", 3);
+		ReflectionTestUtils.setField(conceptService, "maxInFlightBatches", 2);
+		// Batches are written in the background on the shared executor
+		final Object executor = ReflectionTestUtils.getField(conceptService, "executor");
+		final ElasticVCExecutor concurrentExecutor = new ElasticVCExecutor(2, false);
+		ReflectionTestUtils.setField(conceptService, "executor", concurrentExecutor);
+		try {
+			branchService.create("MAIN");
+			List<Concept> concepts = new ArrayList<>();
+			for (int i = 0; i < 10; i++) {
+				concepts.add(new Concept(Integer.toString(i), "Concept " + i));
+			}
+			conceptService.createUpdateConcepts(concepts, "MAIN");
+			branchService.create("MAIN/A");
+
+			List<Concept> updated = new ArrayList<>();
+			for (int i = 0; i < 10; i++) {
+				updated.add(new Concept(Integer.toString(i), "Updated " + i));
+			}
+			conceptService.createUpdateConcepts(updated, "MAIN/A");
+
+			for (int i = 0; i < 10; i++) {
+				assertEquals("Concept " + i, conceptService.findConcept(Integer.toString(i), "MAIN").getTerm());
+				assertEquals("Updated " + i, conceptService.findConcept(Integer.toString(i), "MAIN/A").getTerm());
+			}
+			assertEquals(10, branchService.findLatest("MAIN/A").getVersionsReplaced().get("Concept").size());
+		} finally {
+			ReflectionTestUtils.setField(conceptService, "saveBatchSize", 10_000);
+			ReflectionTestUtils.setField(conceptService, "maxInFlightBatches", 0);
+			ReflectionTestUtils.setField(conceptService, "executor", executor);
+			concurrentExecutor.shutdown();
+		}
+	}
+
+	@Test
+	void testStreamingSave() {
+		ReflectionTestUtils.setField(conceptService, "saveBatchSize", 2);
+		try {
+			branchService.create("MAIN");
+			ComponentService.SaveSummary summary = conceptService.importConcepts(IntStream.range(0, 5)
+					.mapToObj(i -> new Concept(Integer.toString(i), "Concept " + i))
+					.peek(Concept::markChanged), "MAIN");
+			assertEquals(new ComponentService.SaveSummary(5, 0, 0), summary);
+
+			Concept deleted = conceptService.findConcept("0", "MAIN");
+			deleted.markDeleted();
+			Concept changed = conceptService.findConcept("1", "MAIN");
+			changed.setTerm("Updated");
+			changed.markChanged();
+			Concept unchanged = conceptService.findConcept("2", "MAIN");
+			summary = conceptService.importConcepts(Stream.of(deleted, changed, unchanged), "MAIN");
+			assertEquals(new ComponentService.SaveSummary(1, 1, 1), summary);
+
+			assertNull(conceptService.findConcept("0", "MAIN"));
+			assertEquals("Updated", conceptService.findConcept("1", "MAIN").getTerm());
+			assertEquals("Concept 2", conceptService.findConcept("2", "MAIN").getTerm());
+			assertEquals("Concept 4", conceptService.findConcept("4", "MAIN").getTerm());
+		} finally {
+			ReflectionTestUtils.setField(conceptService, "saveBatchSize", 10_000);
+		}
+	}
+
+	@Test
+	void testRollbackByQuery() {
+		ReflectionTestUtils.setField(branchService, "rollbackUpdateByQuerySlices", 2);
+		try {
+			branchService.create("MAIN");
+			conceptService.createUpdateConcept(new Concept("1", "Concept 1"), "MAIN");
+
+			// Update and add a concept on MAIN but roll the commit back
+			Concept concept = conceptService.findConcept("1", "MAIN");
+			concept.setTerm("Updated");
+			conceptService.createUpdateConcept(concept, "MAIN");
+			conceptService.createUpdateConcept(new Concept("2", "Concept 2"), "MAIN");
+			assertEquals("Updated", conceptService.findConcept("1", "MAIN").getTerm());
+
+			branchService.rollbackCompletedCommit(branchService.findLatest("MAIN"), List.of(Concept.class));
+			branchService.rollbackCompletedCommit(branchService.findLatest("MAIN"), List.of(Concept.class));
+
+			assertEquals("Concept 1", conceptService.findConcept("1", "MAIN").getTerm());
+			assertNull(conceptService.findConcept("2", "MAIN"));
+			SearchHits<Concept> versions = elasticsearchOperations.search(new NativeQueryBuilder().withQuery(termQuery(Concept.FIELD_ID, "1")).build(), Concept.class);
+			assertEquals(1, versions.getTotalHits());
+			assertNull(versions.getSearchHit(0).getContent().getEnd());
+		} finally {
+			ReflectionTestUtils.setField(branchService, "rollbackUpdateByQuerySlices", 0);
+		}
+	}
+
+	@Test
+	void testEndVersionsByQuery() {
+		ReflectionTestUtils.setField(versionControlHelper, "endVersionsByQuery", true);
+		try {
+			branchService.create("MAIN");
+			conceptService.createUpdateConcept(new Concept("1", "Concept 1"), "MAIN");
+			Concept concept = conceptService.findConcept("1", "MAIN");
+			concept.setTerm("Updated");
+			conceptService.createUpdateConcept(concept, "MAIN");
+
+			assertEquals("Updated", conceptService.findConcept("1", "MAIN").getTerm());
+			SearchHits<Concept> versions = elasticsearchOperations.search(new NativeQueryBuilder().withQuery(termQuery(Concept.FIELD_ID, "1")).build(), Concept.class);
+			assertEquals(2, versions.getTotalHits());
+			assertEquals(1, versions.stream().filter(hit -> hit.getContent().getEnd() != null).count(), "Only the previous version should be ended.");
+			assertEquals("Concept 1", versions.stream().filter(hit -> hit.getContent().getEnd() != null).findFirst().orElseThrow().getContent().getTerm(),
+					"The rest of the ended document should be unchanged.");
+
+			try (Commit commit = branchService.openCommit("MAIN")) {
+				assertEquals(1, versionControlHelper.endAllVersionsOnThisBranch(Concept.class, null, commit, conceptRepository));
+				commit.markSuccessful();
+			}
+			assertNull(conceptService.findConcept("1", "MAIN"));
+		} finally {
+			ReflectionTestUtils.setField(versionControlHelper, "endVersionsByQuery", false);
+		}
+	}
+
+	@Test
+	void testVersionsReplacedTermsLookup() {
+		ReflectionTestUtils.setField(versionControlHelper, "versionsReplacedTermsLookup", true);
+		try {
+			branchService.create("MAIN");
+			conceptService.createUpdateConcept(new Concept("1", "Concept on MAIN"), "MAIN");
+			branchService.create("MAIN/A");
+			branchService.create("MAIN/A/TASK");
+
+			Concept concept = conceptService.findConcept("1", "MAIN/A");
+			concept.setTerm("Updated in MAIN/A");
+			conceptService.createUpdateConcept(concept, "MAIN/A");
+			assertEquals(1, branchService.findLatest("MAIN/A").getVersionsReplaced().get("Concept").size());
+
+			BranchCriteria branchCriteria = versionControlHelper.getBranchCriteria("MAIN/A");
+			assertTrue(branchCriteria.isVersionsReplacedLookup());
+			assertEquals("Updated in MAIN/A", conceptService.findConcept("1", "MAIN/A").getTerm());
+			assertEquals("Concept on MAIN", conceptService.findConcept("1", "MAIN").getTerm());
+
+			// Versions replaced on an ancestor are applied through the ancestor's branch version at the base timepoint
+			assertEquals("Concept on MAIN", conceptService.findConcept("1", "MAIN/A/TASK").getTerm());
+			try (Commit commit = branchService.openRebaseCommit("MAIN/A/TASK")) {
+				commit.markSuccessful();
+			}
+			assertEquals("Updated in MAIN/A", conceptService.findConcept("1", "MAIN/A/TASK").getTerm());
+		} finally {
+			ReflectionTestUtils.setField(versionControlHelper, "versionsReplacedTermsLookup", false);
+		}
+	}
+
+	@Test
+	void testVersionsReplacedTermsLookupAboveMaxTermsCount() {
+		// Elasticsearch rejects a terms lookup which fetches more ids than the max_terms_count of the index being searched
+		final String conceptIndex = elasticsearchOperations.getIndexCoordinatesFor(Concept.class).getIndexName();
+		setMaxTermsCount(conceptIndex, 2);
+		ReflectionTestUtils.setField(versionControlHelper, "versionsReplacedTermsLookup", true);
+		ReflectionTestUtils.setField(versionControlHelper, "maxTermsCount", 2);
+		try {
+			branchService.create("MAIN");
+			conceptService.createUpdateConcepts(IntStream.range(0, 5).mapToObj(i -> new Concept(Integer.toString(i), "Concept on MAIN")).toList(), "MAIN");
+			branchService.create("MAIN/A");
+			conceptService.createUpdateConcepts(IntStream.range(0, 5).mapToObj(i -> new Concept(Integer.toString(i), "Updated in MAIN/A")).toList(), "MAIN/A");
+			assertEquals(5, branchService.findLatest("MAIN/A").getVersionsReplaced().get("Concept").size());
+
+			BranchCriteria branchCriteria = versionControlHelper.getBranchCriteria("MAIN/A");
+			assertTrue(branchCriteria.isVersionsReplacedLookup());
+			SearchHits<Concept> concepts = elasticsearchOperations.search(new NativeQueryBuilder()
+					.withQuery(branchCriteria.getEntityBranchCriteria(Concept.class)).build(), Concept.class);
+			assertEquals(5, concepts.getTotalHits());
+			concepts.forEach(hit -> assertEquals("Updated in MAIN/A", hit.getContent().getTerm()));
+		} finally {
+			ReflectionTestUtils.setField(versionControlHelper, "versionsReplacedTermsLookup", false);
+			ReflectionTestUtils.setField(versionControlHelper, "maxTermsCount", 65_536);
+			setMaxTermsCount(conceptIndex, 65_536);
+		}
+	}
+
+	private void setMaxTermsCount(String index, int maxTermsCount) {
+		((ElasticsearchTemplate) elasticsearchOperations).execute(client ->
+				client.indices().putSettings(request -> request.index(index).settings(settings -> settings.maxTermsCount(maxTermsCount))));
+	}
+
 	@AfterEach
 	void tearDown() {
 		branchService.deleteAll();
@@ -0,0 +1,72 @@
+package io.kaicode.elasticvc.api;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.kaicode.elasticvc.domain.Branch;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AsyncBranchServiceTest {
+
+	private final CountDownLatch release = new CountDownLatch(1);
+
+	private volatile Thread lookupThread;
+
+	private final AsyncBranchService asyncBranchService = new AsyncBranchService(2);
+
+	@AfterEach
+	void tearDown() {
+		asyncBranchService.shutdown();
+	}
+
+	@Test
+	void testLookupsDoNotRunOnTheCallingThread() throws Exception {
+		ReflectionTestUtils.setField(asyncBranchService, "branchService", new BlockingBranchService());
+
+		// The commit executor does not allow concurrency by default, lookups must still not block the caller
+		CompletableFuture<Branch> future = asyncBranchService.findLatest("MAIN");
+		assertFalse(future.isDone());
+
+		release.countDown();
+		assertEquals("MAIN", future.get(10, TimeUnit.SECONDS).getPath());
+		assertNotSame(Thread.currentThread(), lookupThread);
+		assertTrue(lookupThread.getName().startsWith("elasticvc-async-"));
+	}
+
+	@Test
+	void testLookupFailureIsTheCause() {
+		release.countDown();
+		ReflectionTestUtils.setField(asyncBranchService, "branchService", new BlockingBranchService());
+
+		ExecutionException exception = assertThrows(ExecutionException.class, () -> asyncBranchService.findLatest("MAIN/B").get(10, TimeUnit.SECONDS));
+		assertInstanceOf(BranchNotFoundException.class, exception.getCause());
+	}
+
+	private class BlockingBranchService extends BranchService {
+
+		BlockingBranchService() {
+			super(new ObjectMapper());
+		}
+
+		@Override
+		public Branch findLatest(String path) {
+			lookupThread = Thread.currentThread();
+			try {
+				assertTrue(release.await(10, TimeUnit.SECONDS));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (!path.equals("MAIN")) {
+				throw new BranchNotFoundException("Branch '" + path + "' does not exist.");
+			}
+			return new Branch(path);
+		}
+	}
+}
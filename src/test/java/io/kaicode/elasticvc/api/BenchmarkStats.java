@@ -0,0 +1,18 @@
+package io.kaicode.elasticvc.api;
+
+/**
+ * Latency statistics shared by the benchmarks.
+ */
+final class BenchmarkStats {
+
+	private BenchmarkStats() {
+	}
+
+	/**
+	 * @return the given percentile of the sorted latencies, in milliseconds.
+	 */
+	static double percentile(long[] sortedNanos, int percentile) {
+		int index = Math.min(sortedNanos.length - 1, (int) Math.ceil(percentile / 100.0 * sortedNanos.length) - 1);
+		return sortedNanos[Math.max(index, 0)] / 1_000_000.0;
+	}
+}
@@ -0,0 +1,106 @@
+package io.kaicode.elasticvc.api;
+
+import io.kaicode.elasticvc.domain.Branch;
+import io.kaicode.elasticvc.example.domain.Concept;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static io.kaicode.elasticvc.helper.QueryHelper.termQuery;
+import static org.junit.jupiter.api.Assertions.*;
+
+class BranchCriteriaCacheTest {
+
+	@Test
+	void testInvalidateByDependencyPath() {
+		BranchCriteriaCache cache = new BranchCriteriaCache(100, 30);
+		Branch branch = newBranch("MAIN/A/A1");
+		cache.put(branch, latestVersions(branch), newCriteria(branch), Set.of("MAIN/A/A1", "MAIN/A", "MAIN"), cache.getGeneration());
+		assertNotNull(cache.get(branch, latestVersions(branch)));
+
+		cache.invalidate("MAIN/B");
+		assertNotNull(cache.get(branch, latestVersions(branch)));
+
+		cache.invalidate("MAIN");
+		assertNull(cache.get(branch, latestVersions(branch)));
+	}
+
+	@Test
+	void testBaseIsPartOfKey() {
+		BranchCriteriaCache cache = new BranchCriteriaCache(100, 30);
+		Branch branch = newBranch("MAIN/A");
+		cache.put(branch, latestVersions(branch), newCriteria(branch), Set.of("MAIN/A", "MAIN"), cache.getGeneration());
+
+		branch.setBase(new Date(branch.getBaseTimestamp() + 1));
+		assertNull(cache.get(branch, latestVersions(branch)));
+	}
+
+	@Test
+	void testAncestorHeadsAndMetadataArePartOfKey() {
+		BranchCriteriaCache cache = new BranchCriteriaCache(100, 30);
+		Branch branch = newBranch("MAIN/A");
+		Branch main = newBranch("MAIN");
+		cache.put(branch, List.of(branch, main), newCriteria(branch), Set.of("MAIN/A", "MAIN"), cache.getGeneration());
+		assertNotNull(cache.get(branch, List.of(branch, main)));
+
+		// Saved by another instance, so not invalidated here
+		Branch newMain = newBranch("MAIN");
+		newMain.setHead(new Date(3));
+		assertNull(cache.get(branch, List.of(branch, newMain)));
+
+		Branch mainWithMetadata = newBranch("MAIN");
+		mainWithMetadata.setMetadataInternal(Map.of("dependencyPackage", "x"));
+		assertNull(cache.get(branch, List.of(branch, mainWithMetadata)));
+
+		Branch branchWithMetadata = newBranch("MAIN/A");
+		branchWithMetadata.setMetadataInternal(Map.of("dependencyPackage", "x"));
+		assertNull(cache.get(branch, List.of(branchWithMetadata, main)));
+	}
+
+	@Test
+	void testCopiesShareBuiltQueriesUntilModified() {
+		BranchCriteriaCache cache = new BranchCriteriaCache(100, 30);
+		Branch branch = newBranch("MAIN/A");
+		cache.put(branch, latestVersions(branch), newCriteria(branch), Set.of("MAIN/A", "MAIN"), cache.getGeneration());
+
+		BranchCriteria first = cache.get(branch, latestVersions(branch));
+		BranchCriteria second = cache.get(branch, latestVersions(branch));
+		assertNotSame(first, second);
+		assertSame(first.getEntityBranchCriteria(Concept.class), second.getEntityBranchCriteria(Concept.class));
+
+		second.excludeContentFromPath("MAIN");
+		assertNotSame(first.getEntityBranchCriteria(Concept.class), second.getEntityBranchCriteria(Concept.class));
+		assertSame(first.getEntityBranchCriteria(Concept.class), cache.get(branch, latestVersions(branch)).getEntityBranchCriteria(Concept.class));
+	}
+
+	@Test
+	void testCallersCanModifyVersionsReplacedOfCachedCriteria() {
+		BranchCriteriaCache cache = new BranchCriteriaCache(100, 30);
+		Branch branch = newBranch("MAIN/A");
+		cache.put(branch, latestVersions(branch), newCriteria(branch), Set.of("MAIN/A", "MAIN"), cache.getGeneration());
+
+		cache.get(branch, latestVersions(branch)).getAllEntityVersionsReplaced().put("Description", Set.of("3"));
+		cache.get(branch, latestVersions(branch)).getAllEntityVersionsReplaced().get("Concept").add("3");
+		assertEquals(Map.of("Concept", Set.of("1", "2")), cache.get(branch, latestVersions(branch)).getAllEntityVersionsReplaced());
+	}
+
+	private BranchCriteria newCriteria(Branch branch) {
+		return new BranchCriteria(branch.getPath(), termQuery("path", branch.getPath()), Map.of("Concept", Set.of("1", "2")), branch.getHead());
+	}
+
+	private List<Branch> latestVersions(Branch branch) {
+		List<Branch> latestVersions = new ArrayList<>();
+		latestVersions.add(branch);
+		for (String path = PathUtil.getParentPath(branch.getPath()); path != null; path = PathUtil.getParentPath(path)) {
+			latestVersions.add(newBranch(path));
+		}
+		return latestVersions;
+	}
+
+	private Branch newBranch(String path) {
+		Branch branch = new Branch(path);
+		branch.setBase(new Date(1));
+		branch.setHead(new Date(2));
+		return branch;
+	}
+}
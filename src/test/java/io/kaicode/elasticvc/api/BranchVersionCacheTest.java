@@ -0,0 +1,74 @@
+package io.kaicode.elasticvc.api;
+
+import io.kaicode.elasticvc.domain.Branch;
+import org.junit.jupiter.api.Test;
+
+import java.util.Date;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BranchVersionCacheTest {
+
+	@Test
+	void testInvalidateByPath() {
+		BranchVersionCache cache = new BranchVersionCache(100, 0);
+		Date timepoint = new Date();
+		cache.putLatest(newBranch("MAIN", 1), cache.getGeneration());
+		cache.putLatest(newBranch("MAIN/A", 2), cache.getGeneration());
+		cache.putAtTimepoint(timepoint, newBranch("MAIN/A", 2), cache.getGeneration());
+
+		assertEquals(1, cache.getLatest("MAIN").getHeadTimestamp());
+		assertEquals(2, cache.getAtTimepoint("MAIN/A", timepoint).getHeadTimestamp());
+
+		cache.invalidate("MAIN/A");
+		assertNotNull(cache.getLatest("MAIN"));
+		assertNull(cache.getLatest("MAIN/A"));
+		assertNull(cache.getAtTimepoint("MAIN/A", timepoint));
+	}
+
+	@Test
+	void testTimepointEntriesAfterInvalidation() {
+		BranchVersionCache cache = new BranchVersionCache(100, 0);
+		Date timepoint = new Date();
+		cache.putAtTimepoint(timepoint, newBranch("MAIN", 1), cache.getGeneration());
+		cache.putAtTimepoint(timepoint, newBranch("MAIN/A", 2), cache.getGeneration());
+
+		cache.invalidate("MAIN/A");
+		assertNotNull(cache.getAtTimepoint("MAIN", timepoint));
+		assertNull(cache.getAtTimepoint("MAIN/A", timepoint));
+
+		// Versions read after the invalidation are cached again
+		cache.putAtTimepoint(timepoint, newBranch("MAIN/A", 3), cache.getGeneration());
+		assertEquals(3, cache.getAtTimepoint("MAIN/A", timepoint).getHeadTimestamp());
+	}
+
+	@Test
+	void testReadStartedBeforeSaveIsNotCached() {
+		BranchVersionCache cache = new BranchVersionCache(100, 0);
+		long readGeneration = cache.getGeneration();
+		cache.invalidate("MAIN");
+		cache.putLatest(newBranch("MAIN", 1), readGeneration);
+		assertNull(cache.getLatest("MAIN"));
+	}
+
+	@Test
+	void testCallersReceiveCopies() {
+		BranchVersionCache cache = new BranchVersionCache(100, 0);
+		cache.putLatest(newBranch("MAIN", 1), cache.getGeneration());
+		cache.getLatest("MAIN").setLocked(true);
+		assertFalse(cache.getLatest("MAIN").isLocked());
+	}
+
+	@Test
+	void testDisabled() {
+		BranchVersionCache cache = new BranchVersionCache(0, 0);
+		cache.putLatest(newBranch("MAIN", 1), cache.getGeneration());
+		assertNull(cache.getLatest("MAIN"));
+	}
+
+	private Branch newBranch(String path, long head) {
+		Branch branch = new Branch(path);
+		branch.setHead(new Date(head));
+		return branch;
+	}
+}
@@ -0,0 +1,210 @@
+package io.kaicode.elasticvc.api;
+
+import io.kaicode.elasticvc.AbstractTest;
+import io.kaicode.elasticvc.domain.Commit;
+import io.kaicode.elasticvc.domain.CommitTimings;
+import io.kaicode.elasticvc.example.domain.Concept;
+import io.kaicode.elasticvc.example.service.ConceptRepository;
+import io.kaicode.elasticvc.example.service.ConceptService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.*;
+
+import static io.kaicode.elasticvc.api.BenchmarkStats.percentile;
+
+/**
+ * Commit throughput and per phase latency through the BranchService and ComponentService against the Testcontainers Elasticsearch.
+ * Content is saved with ComponentService.doSaveBatchComponents, in sequence and pipelined, and with the streaming doSaveComponents.
+ * Phase latencies are read from the CommitTimings of each commit.
+ * Run with: mvn test -Pbenchmark -Dtest=CommitThroughputBenchmark
+ * The number of commits per scenario can be set with -Dbenchmark.commits
+ */
+@Tag("benchmark")
+class CommitThroughputBenchmark extends AbstractTest {
+
+	private static final int COMMITS = Integer.getInteger("benchmark.commits", 20);
+	private static final int[] BATCH_SIZES = {100, 1_000, 10_000};
+	private static final int[] DEPTHS = {1, 3};
+	// Smaller than the largest batch so that commits save several batches, which is when pipelining applies
+	private static final int SAVE_BATCH_SIZE = 1_000;
+	private static final int PIPELINE_MAX_IN_FLIGHT_BATCHES = 2;
+
+	@Autowired
+	private BranchService branchService;
+
+	@Autowired
+	private ConceptService conceptService;
+
+	@Autowired
+	private ConceptRepository conceptRepository;
+
+	private int saveBatchSize;
+
+	private int maxInFlightBatches;
+
+	private ElasticVCExecutor executor;
+
+	private ElasticVCExecutor pipelineExecutor;
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private enum SaveMode {
+		BATCH, PIPELINED, STREAMING
+	}
+
+	@BeforeEach
+	void setUp() {
+		saveBatchSize = conceptService.getSaveBatchSize();
+		maxInFlightBatches = (int) ReflectionTestUtils.getField(conceptService, "maxInFlightBatches");
+		ReflectionTestUtils.setField(conceptService, "saveBatchSize", SAVE_BATCH_SIZE);
+		executor = (ElasticVCExecutor) ReflectionTestUtils.getField(conceptService, "executor");
+		// Pipelined batches are written on the shared executor, which must allow concurrency
+		pipelineExecutor = new ElasticVCExecutor(PIPELINE_MAX_IN_FLIGHT_BATCHES, true);
+	}
+
+	@Test
+	void contentCommits() {
+		for (SaveMode saveMode : SaveMode.values()) {
+			ReflectionTestUtils.setField(conceptService, "maxInFlightBatches", saveMode == SaveMode.BATCH ? 0 : PIPELINE_MAX_IN_FLIGHT_BATCHES);
+			ReflectionTestUtils.setField(conceptService, "executor", saveMode == SaveMode.BATCH ? executor : pipelineExecutor);
+			for (int depth : DEPTHS) {
+				String path = createBranches(depth);
+				for (int batchSize : BATCH_SIZES) {
+					PhaseTimings timings = new PhaseTimings();
+					long start = System.nanoTime();
+					for (int i = 0; i < COMMITS; i++) {
+						List<Concept> concepts = new ArrayList<>();
+						for (int j = 0; j < batchSize; j++) {
+							// Each commit after the first replaces the versions saved by the previous commit
+							Concept concept = new Concept(Integer.toString(j), "Term " + i);
+							concept.markChanged();
+							concepts.add(concept);
+						}
+						long commitStart = System.nanoTime();
+						Commit commit = branchService.openCommit(path);
+						try (commit) {
+							if (saveMode == SaveMode.STREAMING) {
+								conceptService.doSaveComponents(concepts.stream(), commit, Concept.FIELD_ID, conceptRepository);
+							} else {
+								conceptService.doSaveBatchComponents(concepts, commit, Concept.FIELD_ID, conceptRepository);
+							}
+							commit.markSuccessful();
+						}
+						timings.record(commit.getTimings(), System.nanoTime() - commitStart);
+					}
+					timings.report(String.format("CONTENT %s depth %s batch %s", saveMode, depth, batchSize), System.nanoTime() - start, (long) COMMITS * batchSize);
+					conceptService.deleteAll();
+				}
+				branchService.deleteAll();
+			}
+		}
+	}
+
+	@Test
+	void rebaseAndPromotionCommits() {
+		for (int depth : DEPTHS) {
+			String path = createBranches(depth + 1);
+			String parentPath = PathUtil.getParentPath(path);
+			for (int batchSize : BATCH_SIZES) {
+				PhaseTimings rebaseTimings = new PhaseTimings();
+				PhaseTimings promotionTimings = new PhaseTimings();
+				long rebaseNanos = 0;
+				long promotionNanos = 0;
+				for (int i = 0; i < COMMITS; i++) {
+					// Content on the parent for the child to rebase onto
+					saveConcepts(parentPath, batchSize, "P" + i + "-");
+					long start = System.nanoTime();
+					Commit rebase = branchService.openRebaseCommit(path);
+					try (rebase) {
+						rebase.markSuccessful();
+					}
+					long nanos = System.nanoTime() - start;
+					rebaseTimings.record(rebase.getTimings(), nanos);
+					rebaseNanos += nanos;
+
+					// Content on the child to promote
+					saveConcepts(path, batchSize, "C" + i + "-");
+					start = System.nanoTime();
+					Commit promotion = branchService.openPromotionCommit(parentPath, path);
+					try (promotion) {
+						promotion.markSuccessful();
+					}
+					nanos = System.nanoTime() - start;
+					promotionTimings.record(promotion.getTimings(), nanos);
+					promotionNanos += nanos;
+				}
+				rebaseTimings.report(String.format("REBASE depth %s batch %s", depth, batchSize), rebaseNanos, (long) COMMITS * batchSize);
+				promotionTimings.report(String.format("PROMOTION depth %s batch %s", depth, batchSize), promotionNanos, (long) COMMITS * batchSize);
+				conceptService.deleteAll();
+			}
+			branchService.deleteAll();
+		}
+	}
+
+	private String createBranches(int depth) {
+		String path = "MAIN";
+		branchService.create(path);
+		for (int i = 1; i < depth; i++) {
+			path = path + "/B" + i;
+			branchService.create(path);
+		}
+		return path;
+	}
+
+	private void saveConcepts(String path, int count, String idPrefix) {
+		List<Concept> concepts = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			concepts.add(new Concept(idPrefix + i, "Term"));
+		}
+		conceptService.createUpdateConcepts(concepts, path);
+	}
+
+	@AfterEach
+	void tearDown() {
+		ReflectionTestUtils.setField(conceptService, "saveBatchSize", saveBatchSize);
+		ReflectionTestUtils.setField(conceptService, "maxInFlightBatches", maxInFlightBatches);
+		ReflectionTestUtils.setField(conceptService, "executor", executor);
+		pipelineExecutor.shutdown();
+		conceptService.deleteAll();
+		branchService.deleteAll();
+	}
+
+	private class PhaseTimings {
+
+		private final Map<String, List<Long>> nanosByPhase = new LinkedHashMap<>();
+
+		void record(CommitTimings commitTimings, long commitNanos) {
+			record("commit", commitNanos);
+			recordMillis("lock", commitTimings.getLockMillis());
+			recordMillis("endOldVersions", commitTimings.getEndOldVersionsMillis().values().stream().mapToLong(Long::longValue).sum());
+			recordMillis("save", commitTimings.getSaveMillis());
+			recordMillis("listeners", commitTimings.getListenerMillis().values().stream().mapToLong(Long::longValue).sum());
+			recordMillis("branchVersionWrite", commitTimings.getBranchWriteMillis());
+		}
+
+		private void recordMillis(String phase, long millis) {
+			record(phase, millis * 1_000_000);
+		}
+
+		private void record(String phase, long nanos) {
+			nanosByPhase.computeIfAbsent(phase, p -> new ArrayList<>()).add(nanos);
+		}
+
+		void report(String scenario, long totalNanos, long components) {
+			double seconds = totalNanos / 1_000_000_000.0;
+			logger.info("{}: {} commits/s, {} components/s", scenario, String.format("%.1f", COMMITS / seconds), String.format("%.0f", components / seconds));
+			nanosByPhase.forEach((phase, nanos) -> {
+				long[] sorted = nanos.stream().mapToLong(Long::longValue).sorted().toArray();
+				logger.info("{}: {} p50 {}ms, p95 {}ms, p99 {}ms", scenario, phase,
+						percentile(sorted, 50), percentile(sorted, 95), percentile(sorted, 99));
+			});
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package io.kaicode.elasticvc.api;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ElasticVCExecutorTest {
+
+	@Test
+	void testSequentialByDefault() {
+		ElasticVCExecutor executor = new ElasticVCExecutor(0, true);
+		assertFalse(executor.isConcurrent());
+		Thread caller = Thread.currentThread();
+		List<Boolean> results = executor.invokeAll(List.<Callable<Boolean>>of(() -> Thread.currentThread() == caller, () -> Thread.currentThread() == caller));
+		assertEquals(List.of(true, true), results);
+	}
+
+	@Test
+	void testConcurrent() {
+		ElasticVCExecutor executor = new ElasticVCExecutor(2, false);
+		assertTrue(executor.isConcurrent());
+		// Both tasks must be running at the same time to pass the latch
+		CountDownLatch latch = new CountDownLatch(2);
+		Set<String> threadNames = ConcurrentHashMap.newKeySet();
+		Callable<Integer> task = () -> {
+			threadNames.add(Thread.currentThread().getName());
+			latch.countDown();
+			assertTrue(latch.await(10, TimeUnit.SECONDS));
+			return threadNames.size();
+		};
+		List<Integer> results = executor.invokeAll(List.of(task, task));
+		assertEquals(2, results.size());
+		assertEquals(2, threadNames.size());
+		assertTrue(threadNames.stream().allMatch(name -> name.startsWith("elasticvc-worker-")));
+	}
+
+	@Test
+	void testFailureAfterAllTasksFinish() {
+		ElasticVCExecutor executor = new ElasticVCExecutor(2, true);
+		Set<Integer> finished = ConcurrentHashMap.newKeySet();
+		List<Callable<Integer>> tasks = List.of(
+				() -> {
+					throw new IllegalStateException("Failed");
+				},
+				() -> {
+					Thread.sleep(100);
+					finished.add(2);
+					return 2;
+				},
+				() -> {
+					throw new Exception("Checked");
+				});
+		IllegalStateException exception = assertThrows(IllegalStateException.class, () -> executor.invokeAll(tasks));
+		assertEquals("Failed", exception.getMessage());
+		assertEquals(Set.of(2), finished);
+
+		ElasticVCRuntimeException wrapped = assertThrows(ElasticVCRuntimeException.class, () -> executor.invokeAll(List.<Callable<Void>>of(() -> {
+			throw new Exception("Checked");
+		})));
+		assertEquals("Checked", wrapped.getCause().getMessage());
+	}
+
+	@Test
+	void testSubmit() throws Exception {
+		ElasticVCExecutor sequential = new ElasticVCExecutor(0, true);
+		Thread caller = Thread.currentThread();
+		CompletableFuture<Boolean> onCaller = sequential.submit(() -> Thread.currentThread() == caller);
+		assertTrue(onCaller.isDone());
+		assertTrue(onCaller.get());
+
+		ElasticVCExecutor executor = new ElasticVCExecutor(2, false);
+		CompletableFuture<String> future = executor.submit(() -> Thread.currentThread().getName());
+		assertTrue(future.get(10, TimeUnit.SECONDS).startsWith("elasticvc-worker-"));
+		ExecutionException exception = assertThrows(ExecutionException.class, () -> executor.submit(() -> {
+			throw new IllegalStateException("Failed");
+		}).get(10, TimeUnit.SECONDS));
+		assertInstanceOf(IllegalStateException.class, exception.getCause());
+		executor.shutdown();
+	}
+
+	@Test
+	void testNestedTasksRunOnTheTaskThread() throws Exception {
+		// With one thread, waiting for a nested task on the pool would never finish
+		ElasticVCExecutor executor = new ElasticVCExecutor(1, false);
+		CompletableFuture<List<Boolean>> future = executor.submit(() -> {
+			Thread taskThread = Thread.currentThread();
+			return executor.invokeAll(List.<Callable<Boolean>>of(() -> Thread.currentThread() == taskThread, () -> Thread.currentThread() == taskThread));
+		});
+		assertEquals(List.of(true, true), future.get(10, TimeUnit.SECONDS));
+		executor.shutdown();
+	}
+}
@@ -0,0 +1,70 @@
+package io.kaicode.elasticvc.api;
+
+import io.kaicode.elasticvc.domain.Branch;
+import io.kaicode.elasticvc.domain.Commit;
+import io.kaicode.elasticvc.example.domain.Concept;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ElasticVCMetricsTest {
+
+	@Test
+	void testTimerTags() {
+		MeterRegistry registry = new SimpleMeterRegistry();
+		ElasticVCMetrics metrics = new ElasticVCMetrics(new MicrometerMeters(registry));
+		Branch branch = new Branch("MAIN/A/A1");
+		Commit commit = new Commit(branch, Commit.CommitType.REBASE, c -> {}, c -> {});
+
+		assertEquals("done", metrics.time("elasticvc.versions.end", ElasticVCMetrics.commitTags(commit, Concept.class), () -> "done"));
+
+		assertEquals(1, registry.get("elasticvc.versions.end")
+				.tags(Tags.of("branch.depth", "3", "commit.type", "REBASE", "entity.class", "Concept"))
+				.timer().count());
+	}
+
+	@Test
+	void testVersionsReplacedSummary() {
+		MeterRegistry registry = new SimpleMeterRegistry();
+		ElasticVCMetrics metrics = new ElasticVCMetrics(new MicrometerMeters(registry));
+		Branch branch = new Branch("MAIN/A");
+		branch.setVersionsReplaced(Map.of("Concept", Set.of("1", "2"), "Description", Set.of("3")));
+		metrics.recordVersionsReplaced(branch);
+		metrics.recordVersionsReplaced(new Branch("MAIN/B"));
+
+		// One meter per depth, however many branches there are
+		DistributionSummary summary = registry.get("elasticvc.branch.versions-replaced").tags(Tags.of("branch.depth", "2")).summary();
+		assertEquals(2, summary.count());
+		assertEquals(3, summary.max());
+		assertEquals(1, registry.find("elasticvc.branch.versions-replaced").meters().size());
+	}
+
+	@Test
+	void testNoOpWithoutRegistry() {
+		MicrometerMeters meters = new MicrometerMeters(null);
+		ElasticVCMetrics metrics = new ElasticVCMetrics(meters);
+		metrics.timeLockWait(ElasticVCMetrics.branchTags("MAIN"), () -> {});
+		assertTrue(meters.getMeterRegistry().find("elasticvc.commit.lock.wait").timers().stream().allMatch(timer -> timer.count() == 0));
+	}
+
+	@Test
+	void testWithoutMicrometer() {
+		ElasticVCMetrics metrics = new ElasticVCMetrics((MicrometerMeters) null);
+		assertEquals("done", metrics.time("elasticvc.versions.end", ElasticVCMetrics.branchTags("MAIN"), () -> "done"));
+		metrics.timeLockWait(ElasticVCMetrics.branchTags("MAIN"), () -> {});
+		metrics.recordVersionsReplaced(new Branch("MAIN"));
+	}
+
+	@Test
+	void testDepth() {
+		assertEquals("1", ElasticVCMetrics.depth("MAIN"));
+		assertEquals("3", ElasticVCMetrics.depth("MAIN/A/A1"));
+	}
+}
@@ -0,0 +1,74 @@
+package io.kaicode.elasticvc.api;
+
+import io.kaicode.elasticvc.domain.Metadata;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InheritedMetadataCacheTest {
+
+	@Test
+	void testInvalidateDescendants() {
+		InheritedMetadataCache cache = new InheritedMetadataCache(100, 0);
+		cache.put("MAIN/A/A1", heads(2), newMetadata(), cache.getGeneration());
+		cache.put("MAIN/AB", heads(1), newMetadata(), cache.getGeneration());
+		assertNotNull(cache.get("MAIN/A/A1", heads(2)));
+
+		cache.invalidate("MAIN/A/A1");
+		assertNotNull(cache.get("MAIN/A/A1", heads(2)));
+
+		cache.invalidate("MAIN/A");
+		assertNull(cache.get("MAIN/A/A1", heads(2)));
+		assertNotNull(cache.get("MAIN/AB", heads(1)));
+	}
+
+	@Test
+	void testMergeReadBeforeInvalidationIsNotCached() {
+		InheritedMetadataCache cache = new InheritedMetadataCache(100, 0);
+		long generation = cache.getGeneration();
+		cache.invalidate("MAIN");
+		cache.put("MAIN/A", heads(1), newMetadata(), generation);
+		assertNull(cache.get("MAIN/A", heads(1)));
+	}
+
+	@Test
+	void testAncestorHeadsArePartOfKey() {
+		InheritedMetadataCache cache = new InheritedMetadataCache(100, 0);
+		cache.put("MAIN/A/A1", List.of(new Date(2), new Date(1)), newMetadata(), cache.getGeneration());
+		assertNotNull(cache.get("MAIN/A/A1", List.of(new Date(2), new Date(1))));
+
+		// A commit on an ancestor, made by another instance so not invalidated here
+		assertNull(cache.get("MAIN/A/A1", List.of(new Date(2), new Date(3))));
+	}
+
+	@Test
+	void testCachedMetadataIsNotModifiedThroughCopies() {
+		InheritedMetadataCache cache = new InheritedMetadataCache(100, 0);
+		Metadata metadata = newMetadata();
+		cache.put("MAIN/A", heads(1), metadata, cache.getGeneration());
+		metadata.putString("codeSystem", "changed");
+
+		Metadata copy = cache.get("MAIN/A", heads(1));
+		assertEquals("SNOMEDCT", copy.getString("codeSystem"));
+		copy.getList("modules").add("2");
+		assertEquals(List.of("1"), cache.get("MAIN/A", heads(1)).getList("modules"));
+	}
+
+	private List<Date> heads(int depth) {
+		List<Date> heads = new ArrayList<>();
+		for (int i = 0; i < depth; i++) {
+			heads.add(new Date(i));
+		}
+		return heads;
+	}
+
+	private Metadata newMetadata() {
+		return new Metadata(new HashMap<>(Map.of("codeSystem", "SNOMEDCT", "modules", new ArrayList<>(List.of("1")))));
+	}
+}
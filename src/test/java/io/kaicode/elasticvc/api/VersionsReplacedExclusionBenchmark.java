@@ -0,0 +1,107 @@
+package io.kaicode.elasticvc.api;
+
+import co.elastic.clients.elasticsearch._types.query_dsl.Query;
+import co.elastic.clients.json.JsonpUtils;
+import co.elastic.clients.json.jackson.JacksonJsonpMapper;
+import io.kaicode.elasticvc.AbstractTest;
+import io.kaicode.elasticvc.example.domain.Concept;
+import io.kaicode.elasticvc.example.service.ConceptService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.elasticsearch.client.elc.NativeQueryBuilder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static io.kaicode.elasticvc.api.BenchmarkStats.percentile;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Compares the size and latency of branch criteria queries when versions replaced are listed in the query
+ * against looking them up from the branch documents with a terms lookup.
+ * Run with: mvn test -Pbenchmark
+ */
+@Tag("benchmark")
+class VersionsReplacedExclusionBenchmark extends AbstractTest {
+
+	private static final int CONCEPTS = Integer.getInteger("benchmark.concepts", 20_000);
+	private static final int BATCH_SIZE = 5_000;
+	private static final int WARMUP = 20;
+	private static final int ITERATIONS = 200;
+
+	@Autowired
+	private ConceptService conceptService;
+
+	@Autowired
+	private BranchService branchService;
+
+	@Autowired
+	private VersionControlHelper versionControlHelper;
+
+	@Autowired
+	private BranchCriteriaCache branchCriteriaCache;
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	@Test
+	void compareExclusionModes() {
+		branchService.create("MAIN");
+		saveConcepts("MAIN", "Concept on MAIN");
+		branchService.create("MAIN/A");
+		saveConcepts("MAIN/A", "Concept on MAIN/A");
+
+		long idListHits = run(false);
+		long lookupHits = run(true);
+		assertEquals(CONCEPTS, idListHits);
+		assertEquals(idListHits, lookupHits);
+	}
+
+	private long run(boolean termsLookup) {
+		ReflectionTestUtils.setField(versionControlHelper, "versionsReplacedTermsLookup", termsLookup);
+		branchCriteriaCache.invalidateAll();
+		BranchCriteria branchCriteria = versionControlHelper.getBranchCriteria("MAIN/A");
+		Query query = branchCriteria.getEntityBranchCriteria(Concept.class);
+		int querySize = JsonpUtils.toJsonString(query, new JacksonJsonpMapper()).length();
+
+		long hits = 0;
+		long[] nanos = new long[ITERATIONS];
+		for (int i = 0; i < WARMUP + ITERATIONS; i++) {
+			long start = System.nanoTime();
+			hits = elasticsearchOperations.count(new NativeQueryBuilder().withQuery(query).build(), Concept.class);
+			if (i >= WARMUP) {
+				nanos[i - WARMUP] = System.nanoTime() - start;
+			}
+		}
+		Arrays.sort(nanos);
+		logger.info("{}: query size {} chars, p50 {}ms, p95 {}ms, p99 {}ms, hits {}", termsLookup ? "Terms lookup" : "Id list", querySize,
+				percentile(nanos, 50), percentile(nanos, 95), percentile(nanos, 99), hits);
+		return hits;
+	}
+
+	private void saveConcepts(String branch, String term) {
+		List<Concept> batch = new ArrayList<>();
+		for (int i = 0; i < CONCEPTS; i++) {
+			batch.add(new Concept(Integer.toString(i), term));
+			if (batch.size() == BATCH_SIZE) {
+				conceptService.createUpdateConcepts(batch, branch);
+				batch = new ArrayList<>();
+			}
+		}
+		if (!batch.isEmpty()) {
+			conceptService.createUpdateConcepts(batch, branch);
+		}
+	}
+
+	@AfterEach
+	void tearDown() {
+		ReflectionTestUtils.setField(versionControlHelper, "versionsReplacedTermsLookup", false);
+		conceptService.deleteAll();
+		branchService.deleteAll();
+	}
+}
@@ -1,6 +1,15 @@
 package io.kaicode.elasticvc.domain;
 
+import io.kaicode.elasticvc.example.domain.Concept;
 import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 class BranchTest {
@@ -17,4 +26,145 @@ class BranchTest {
 		assertFalse(new Branch("MAIN/A").isParent(new Branch("MAIN/B")));
 	}
 
+	@Test
+	void testPathFields() {
+		Branch main = new Branch("MAIN");
+		assertNull(main.getParentPath());
+		assertEquals(1, main.getDepth());
+		assertEquals(List.of(), main.getAncestors());
+
+		Branch branch = new Branch("MAIN/A/A1");
+		assertEquals("MAIN/A", branch.getParentPath());
+		assertEquals(3, branch.getDepth());
+		assertEquals(List.of("MAIN", "MAIN/A"), branch.getAncestors());
+	}
+
+	@Test
+	void testVersionsReplacedAreSharedNotCopied() {
+		Branch branch = new Branch("MAIN/A");
+		branch.setVersionsReplaced(Map.of("Concept", Set.of("1", "2")));
+		branch.addVersionsReplaced(Map.of("Concept", Set.of("3"), "Description", Set.of("4")));
+
+		Map<String, Set<String>> versionsReplaced = branch.getSharedVersionsReplaced();
+		assertEquals(Set.of("1", "2", "3"), versionsReplaced.get("Concept"));
+		assertEquals(Set.of("4"), versionsReplaced.get("Description"));
+		assertSame(versionsReplaced.get("Concept"), branch.getSharedVersionsReplaced().get("Concept"));
+		assertThrows(UnsupportedOperationException.class, () -> versionsReplaced.get("Concept").add("5"));
+
+		// The returned map is a copy
+		versionsReplaced.remove("Description");
+		assertEquals(2, branch.getSharedVersionsReplaced().size());
+	}
+
+	@Test
+	void testVersionsReplacedCopiesMayBeModified() {
+		Branch branch = new Branch("MAIN/A");
+		branch.setVersionsReplaced(Map.of("Concept", Set.of("1", "2")));
+
+		branch.getVersionsReplaced().get("Concept").add("3");
+		branch.getVersionsReplaced(Concept.class).add("4");
+		assertEquals(Set.of("1", "2"), branch.getVersionsReplaced(Concept.class));
+	}
+
+
+	@Test
+	void testVersionsReplacedCountsReadWithoutLoading() {
+		Branch branch = new Branch("MAIN/A");
+		branch.setVersionsReplacedDelta(new Date(1000), 1, Map.of("Concept", Set.of("3")), Map.of("Concept", Set.of("1", "2", "3")));
+		assertTrue(branch.isVersionsReplacedCounted());
+
+		// As read from Elasticsearch, the full versions replaced of the delta are not loaded to count them
+		Branch loaded = new Branch("MAIN/A");
+		loaded.setStoredVersionsReplaced(branch);
+		ReflectionTestUtils.setField(loaded, "resolvedVersionsReplaced", null);
+		loaded.setVersionsReplacedLoader(version -> fail("Versions replaced should not be loaded"));
+		assertEquals(Map.of("Concept", 3), loaded.getVersionsReplacedCounts());
+
+		// Counted again once more versions are replaced
+		branch.addVersionsReplaced(Map.of("Concept", Set.of("4"), "Description", Set.of("5")));
+		assertEquals(Map.of("Concept", 4, "Description", 1), branch.getVersionsReplacedCounts());
+	}
+
+	@Test
+	void testVersionsReplacedDelta() {
+		Date snapshot = new Date(1000);
+		Branch branch = new Branch("MAIN/A");
+		branch.setVersionsReplacedDelta(snapshot, 1, Map.of("Concept", Set.of("3")), Map.of("Concept", Set.of("1", "2", "3")));
+		assertTrue(branch.isVersionsReplacedDelta());
+		assertEquals(Set.of("3"), branch.getStoredVersionsReplaced().get("Concept"));
+		assertEquals(Set.of("1", "2", "3"), branch.getVersionsReplaced().get("Concept"));
+
+		branch.addVersionsReplaced(Map.of("Concept", Set.of("4")));
+		assertEquals(Set.of("3", "4"), branch.getStoredVersionsReplaced().get("Concept"));
+		assertEquals(Map.of("Concept", 4), branch.getVersionsReplacedCounts());
+
+		// A version read from Elasticsearch loads the full versions replaced once, on first use
+		Branch copy = new Branch("MAIN/A");
+		copy.setVersionsReplacedDelta(snapshot, 1, Map.of("Concept", Set.of("3")), Map.of());
+		Branch loaded = new Branch("MAIN/A");
+		loaded.setStoredVersionsReplaced(copy);
+		ReflectionTestUtils.setField(loaded, "resolvedVersionsReplaced", null);
+		assertThrows(IllegalStateException.class, loaded::getVersionsReplaced);
+		int[] loads = {0};
+		loaded.setVersionsReplacedLoader(version -> {
+			loads[0]++;
+			return Map.of("Concept", Set.of("1", "3"));
+		});
+		assertEquals(Set.of("1", "3"), loaded.getVersionsReplaced().get("Concept"));
+		assertEquals(Set.of("1", "3"), loaded.getVersionsReplaced(Concept.class));
+		assertEquals(1, loads[0]);
+
+		// Setting the full versions replaced stores a snapshot
+		loaded.setVersionsReplaced(Map.of("Concept", Set.of("5")));
+		assertFalse(loaded.isVersionsReplacedDelta());
+		assertEquals(Set.of("5"), loaded.getVersionsReplaced().get("Concept"));
+	}
+
+	@Test
+	void testConcurrentAccessLoadsVersionsReplacedOnce() throws Exception {
+		Branch stored = new Branch("MAIN/A");
+		stored.setVersionsReplacedDelta(new Date(1000), 1, Map.of("Concept", Set.of("3")), Map.of());
+		Branch branch = new Branch("MAIN/A");
+		branch.setStoredVersionsReplaced(stored);
+		ReflectionTestUtils.setField(branch, "resolvedVersionsReplaced", null);
+		AtomicInteger loads = new AtomicInteger();
+		branch.setVersionsReplacedLoader(version -> {
+			loads.incrementAndGet();
+			return Map.of("Concept", Set.of("1", "2", "3"));
+		});
+
+		ExecutorService executorService = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Set<String>>> results = new ArrayList<>();
+			for (int i = 0; i < 32; i++) {
+				results.add(executorService.submit(() -> branch.getVersionsReplaced().get("Concept")));
+			}
+			for (Future<Set<String>> result : results) {
+				assertEquals(Set.of("1", "2", "3"), result.get());
+			}
+		} finally {
+			executorService.shutdown();
+		}
+		assertEquals(1, loads.get());
+	}
+
+	@Test
+	void testExcludedFieldsLoadedTogether() {
+		Branch stored = new Branch("MAIN/A");
+		stored.setVersionsReplaced(Map.of("Concept", Set.of("1")));
+		stored.setMetadataInternal(Map.of("owner", "someone"));
+		Branch branch = new Branch("MAIN/A");
+		AtomicInteger loads = new AtomicInteger();
+		branch.setExcludedFieldsLoader(version -> {
+			loads.incrementAndGet();
+			return stored;
+		});
+		assertTrue(branch.isFieldsExcluded());
+
+		assertEquals(Map.of("owner", "someone"), branch.getMetadataInternal());
+		assertEquals(Set.of("1"), branch.getVersionsReplaced().get("Concept"));
+		assertFalse(branch.isFieldsExcluded());
+		branch.loadExcludedFields();
+		assertEquals(1, loads.get());
+	}
 }
@@ -0,0 +1,49 @@
+package io.kaicode.elasticvc.domain;
+
+import io.kaicode.elasticvc.example.domain.Concept;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CommitTest {
+
+	@Test
+	void testVersionsReplacedIncludingFromBranchAreCopied() {
+		Commit commit = new Commit(new Branch("MAIN/A"), Commit.CommitType.CONTENT, c -> {}, c -> {});
+		commit.addVersionsReplaced(Set.of("1"), Concept.class);
+
+		Map<String, Set<String>> versionsReplaced = commit.getEntityVersionsReplacedIncludingFromBranch();
+		commit.addVersionsReplaced(Set.of("2"), Concept.class);
+		assertEquals(Set.of("1"), versionsReplaced.get("Concept"));
+		versionsReplaced.get("Concept").add("3");
+		assertThrows(UnsupportedOperationException.class, () -> commit.getSharedEntityVersionsReplacedIncludingFromBranch().get("Concept").add("3"));
+		assertEquals(Set.of("1", "2"), commit.getEntityVersionsReplaced().get("Concept"));
+	}
+
+	@Test
+	void testVersionsReplacedReadWhileAdding() throws Exception {
+		Commit commit = new Commit(new Branch("MAIN/A"), Commit.CommitType.CONTENT, c -> {}, c -> {});
+		commit.addVersionsReplaced(Set.of("0"), Concept.class);
+		AtomicBoolean adding = new AtomicBoolean(true);
+		Thread writer = new Thread(() -> {
+			for (int i = 1; i < 200_000 && adding.get(); i++) {
+				commit.addVersionsReplaced(Set.of(Integer.toString(i)), Concept.class);
+			}
+		});
+		writer.start();
+		try {
+			for (int i = 0; i < 200; i++) {
+				Set<String> versionsReplaced = commit.getSharedEntityVersionsReplacedIncludingFromBranch().get("Concept");
+				assertTrue(versionsReplaced.contains("0"));
+				assertFalse(versionsReplaced.contains(null));
+			}
+		} finally {
+			adding.set(false);
+			writer.join();
+		}
+	}
+}
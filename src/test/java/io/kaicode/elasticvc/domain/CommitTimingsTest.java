@@ -0,0 +1,31 @@
+package io.kaicode.elasticvc.domain;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CommitTimingsTest {
+
+	@Test
+	void testRecordAndFormat() {
+		CommitTimings timings = new CommitTimings();
+		timings.recordLock(TimeUnit.MILLISECONDS.toNanos(3));
+		timings.recordListener("IntegrityListener", TimeUnit.MILLISECONDS.toNanos(5));
+		timings.recordEndOldVersions("Concept", TimeUnit.MILLISECONDS.toNanos(10));
+		timings.recordEndOldVersions("Concept", TimeUnit.MILLISECONDS.toNanos(15));
+		timings.recordEndOldVersions("Description", TimeUnit.MILLISECONDS.toNanos(1));
+		timings.recordSave(TimeUnit.MILLISECONDS.toNanos(20));
+		timings.recordSave(TimeUnit.MILLISECONDS.toNanos(20));
+		timings.recordBranchWrite(TimeUnit.MILLISECONDS.toNanos(7));
+
+		assertEquals(3, timings.getLockMillis());
+		assertEquals(Map.of("IntegrityListener", 5L), timings.getListenerMillis());
+		assertEquals(Map.of("Concept", 25L, "Description", 1L), timings.getEndOldVersionsMillis());
+		assertEquals(40, timings.getSaveMillis());
+		assertEquals(7, timings.getBranchWriteMillis());
+		assertEquals("lockMs=3 listenersMs={IntegrityListener=5} endOldVersionsMs={Concept=25, Description=1} saveMs=40 branchWriteMs=7", timings.toString());
+	}
+}
@@ -0,0 +1,51 @@
+package io.kaicode.elasticvc.domain;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InternalIdSetTest {
+
+	@Test
+	void testOf() {
+		InternalIdSet set = InternalIdSet.of(Arrays.asList("c", "a", "b", "a", "é"));
+		assertEquals(4, set.size());
+		assertEquals(List.of("a", "b", "c", "é"), new ArrayList<>(set));
+		assertTrue(set.contains("a"));
+		assertTrue(set.contains("é"));
+		assertFalse(set.contains("d"));
+		assertFalse(set.contains(""));
+		assertEquals(Set.of("a", "b", "c", "é"), set);
+		assertEquals(Set.of("a", "b", "c", "é").hashCode(), set.hashCode());
+		assertSame(set, InternalIdSet.of(set));
+		assertSame(InternalIdSet.empty(), InternalIdSet.of(Collections.emptySet()));
+	}
+
+	@Test
+	void testHashCodeMatchesOtherSets() {
+		Set<String> ids = Set.of("100005", "a1b2-c3d4", "ü-ö", "");
+		assertEquals(ids.hashCode(), InternalIdSet.of(ids).hashCode());
+		assertEquals(0, InternalIdSet.empty().hashCode());
+	}
+
+	@Test
+	void testUnion() {
+		InternalIdSet ab = InternalIdSet.of(Set.of("a", "b"));
+		InternalIdSet union = InternalIdSet.union(ab, Set.of("c", "b", "0"));
+		assertEquals(List.of("0", "a", "b", "c"), new ArrayList<>(union));
+		assertEquals(List.of("a", "b"), new ArrayList<>(ab));
+
+		assertSame(ab, InternalIdSet.union(ab, Set.of("a")));
+		assertSame(ab, InternalIdSet.union(Collections.emptySet(), ab));
+		assertSame(union, InternalIdSet.union(ab, union));
+	}
+
+	@Test
+	void testImmutable() {
+		InternalIdSet set = InternalIdSet.of(Set.of("a"));
+		assertThrows(UnsupportedOperationException.class, () -> set.add("b"));
+		assertThrows(UnsupportedOperationException.class, () -> set.remove("a"));
+	}
+}
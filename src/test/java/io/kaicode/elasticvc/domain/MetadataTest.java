@@ -0,0 +1,73 @@
+package io.kaicode.elasticvc.domain;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MetadataTest {
+
+	private final List<Object> serialised = new ArrayList<>();
+
+	private final Function<Object, String> serialiser = value -> {
+		serialised.add(value);
+		return "{object}|" + value;
+	};
+
+	@Test
+	void testFlatFormOnlyRebuiltForChangedValues() {
+		Metadata metadata = new Metadata(new HashMap<>(Map.of("name", "A", "list", new ArrayList<>(List.of("one")), "map", new HashMap<>(Map.of("x", "1")))));
+		Map<String, String> flat = metadata.toFlatMap(serialiser);
+		assertEquals("A", flat.get("name"));
+		assertEquals(2, serialised.size());
+
+		// Unchanged
+		assertSame(flat, metadata.toFlatMap(serialiser));
+		assertEquals(2, serialised.size());
+
+		// A string value changes, object values are not serialised again
+		metadata.putString("lock", "locked");
+		flat = metadata.toFlatMap(serialiser);
+		assertEquals("locked", flat.get("lock"));
+		assertEquals("{object}|[one]", flat.get("list"));
+		assertEquals(2, serialised.size());
+
+		// A change within a nested map is detected
+		metadata.getMap("map").put("y", "2");
+		flat = metadata.toFlatMap(serialiser);
+		assertEquals(3, serialised.size());
+		assertEquals(Map.of("x", "1", "y", "2"), serialised.get(2));
+
+		metadata.remove("lock");
+		assertFalse(metadata.toFlatMap(serialiser).containsKey("lock"));
+		assertEquals(3, serialised.size());
+	}
+
+	@Test
+	void testExpandedOnFirstAccess() {
+		int[] expansions = {0};
+		Map<String, String> flat = Map.of("name", "A", "list", "{object}|[one]");
+		Metadata metadata = new Metadata(flat, flatMap -> {
+			expansions[0]++;
+			Map<String, Object> expanded = new HashMap<>();
+			expanded.put("name", flatMap.get("name"));
+			expanded.put("list", new ArrayList<>(List.of("one")));
+			return expanded;
+		});
+
+		// Flattening metadata which has not been accessed returns the flat form it was read from
+		assertEquals(flat, metadata.toFlatMap(serialiser));
+		assertEquals(0, expansions[0]);
+
+		assertEquals(List.of("one"), metadata.getList("list"));
+		assertEquals("A", metadata.getString("name"));
+		assertEquals(1, expansions[0]);
+		assertEquals(flat, metadata.toFlatMap(serialiser));
+		assertTrue(serialised.isEmpty());
+
+		metadata.getList("list").add("two");
+		assertEquals("{object}|[one, two]", metadata.toFlatMap(serialiser).get("list"));
+	}
+}
@@ -14,8 +14,10 @@ import org.springframework.data.elasticsearch.core.SearchHits;
 import org.springframework.stereotype.Service;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.stream.Stream;
 
 import static co.elastic.clients.elasticsearch._types.query_dsl.QueryBuilders.bool;
 import static io.kaicode.elasticvc.helper.QueryHelper.termQuery;
@@ -52,6 +54,23 @@ public class ConceptService extends ComponentService {
 		}
 	}
 
+	public void createUpdateConcepts(Collection<Concept> concepts, String branch) {
+		try (Commit commit = branchService.openCommit(branch)) {
+			concepts.forEach(Concept::markChanged);
+			doSaveBatchComponents(concepts, commit, Concept.FIELD_ID, conceptRepository);
+			commit.markSuccessful();
+		}
+	}
+
+	public SaveSummary importConcepts(Stream<Concept> concepts, String branch) {
+		try (Commit commit = branchService.openCommit(branch)) {
+			// Components are read from the stream as they are saved, they must already be marked as changed or deleted
+			SaveSummary summary = doSaveComponents(concepts, commit, Concept.FIELD_ID, conceptRepository);
+			commit.markSuccessful();
+			return summary;
+		}
+	}
+
 	public Concept findConcept(String id, String branchPath) {
 		// The VersionControlHelper is used to give us a view of content on a branch
 		// This view includes content on parent branches up to the point of last rebase